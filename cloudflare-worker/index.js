@@ -67,11 +67,180 @@ const verifyJWT = async (token) => {
   }
 };
 
+// Compact binary record format sent by the Android monitoring service
+// (see MonitoringWireFormat.java for the layout)
+const COMPACT_RECORDS_CONTENT_TYPE = 'application/x-sentrycircle-records';
+const COMPACT_RECORDS_VERSION = 1;
+const RECORD_TYPE_LOCATION = 1;
+const RECORD_TYPE_HEARTBEAT = 2;
+const RECORD_TYPE_USAGE = 3;
+const RECORD_TYPE_GEOFENCE = 4;
+
+// A piggybacked battery state newer than this is only written when it changed
+const STATUS_REFRESH_INTERVAL = 5 * 60 * 1000;
+
+// Most records accepted in one sync envelope
+const MAX_SYNC_RECORDS = 50;
+
+// Uploads per day / burst each device may send per record class, announced
+// in the X-Write-Budget header of every response to a device write. KV allows
+// KV_WRITE_QUOTA writes a day (1,000 on the free plan) across the account.
+// Devices share DEVICE_WRITE_SHARE of it equally; the rest is left for
+// guardians (registrations, commands). Each class gets a share of a
+// device's writes, divided by what one upload of the class can cost: a
+// location batch writes the current location, the history and possibly the
+// device status; geofence and usage uploads write their list and possibly
+// the status; a status upload writes the device. Setting WRITE_BUDGET
+// overrides the derived rates.
+const DEFAULT_KV_WRITE_QUOTA = 1000;
+const DEVICE_WRITE_SHARE = 0.8;
+const WRITE_BUDGET_CLASSES = [
+  { key: 'location', share: 0.4, cost: 3, burst: 4, maxPerDay: 96 },
+  { key: 'geofence', share: 0.2, cost: 2, burst: 6, maxPerDay: 96 },
+  { key: 'status', share: 0.2, cost: 1, burst: 3, maxPerDay: 96 },
+  { key: 'usage', share: 0.2, cost: 2, burst: 2, maxPerDay: 48 }
+];
+
+// Registered devices, counted on registration; the budget is re-read from
+// the edge cache at most this often
+const DEVICE_COUNT_KEY = 'deviceCount';
+const DEVICE_COUNT_CACHE_TTL = 300;
+
+// Helper function to decode a compact binary record stream
+const decodeCompactRecords = (buffer) => {
+  const bytes = new Uint8Array(buffer);
+  let offset = 0;
+  
+  // Varints may exceed 32 bits (timestamps), so avoid bitwise operators
+  const readVarint = () => {
+    let value = 0;
+    let scale = 1;
+    let byte;
+    do {
+      if (offset >= bytes.length) {
+        throw new Error('Truncated record stream');
+      }
+      byte = bytes[offset++];
+      value += (byte & 0x7f) * scale;
+      scale *= 128;
+    } while (byte & 0x80);
+    return value;
+  };
+  const readZigZag = () => {
+    const value = readVarint();
+    return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+  };
+  const readString = () => {
+    const length = readVarint();
+    const value = new TextDecoder().decode(bytes.subarray(offset, offset + length));
+    offset += length;
+    return value;
+  };
+  
+  if (bytes[0] !== 0x53 || bytes[1] !== 0x43 || bytes[2] !== COMPACT_RECORDS_VERSION) {
+    const error = new Error('Unsupported record format');
+    error.status = 415;
+    throw error;
+  }
+  offset = 3;
+  
+  const deviceId = readString();
+  const count = readVarint();
+  const records = [];
+  let time = 0;
+  let latitude = 0;
+  let longitude = 0;
+  
+  for (let i = 0; i < count; i++) {
+    const type = bytes[offset++];
+    time += readZigZag();
+    
+    if (type === RECORD_TYPE_LOCATION) {
+      latitude += readZigZag();
+      longitude += readZigZag();
+      records.push({
+        type: 'location',
+        timestamp: time,
+        location: {
+          latitude: latitude / 1e7,
+          longitude: longitude / 1e7,
+          accuracy: readVarint() / 10
+        }
+      });
+    } else if (type === RECORD_TYPE_HEARTBEAT) {
+      const batteryLevel = bytes[offset++];
+      const flags = bytes[offset++];
+      records.push({ type: 'heartbeat', timestamp: time, batteryLevel, isCharging: (flags & 1) === 1 });
+    } else if (type === RECORD_TYPE_USAGE) {
+      const packageName = readString();
+      const foregroundTime = readVarint();
+      const launchCount = readVarint();
+      records.push({ type: 'usage', timestamp: time, packageName, foregroundTime, launchCount });
+    } else if (type === RECORD_TYPE_GEOFENCE) {
+      latitude += readZigZag();
+      longitude += readZigZag();
+      const zoneId = readString();
+      const flags = bytes[offset++];
+      records.push({
+        type: 'geofence',
+        timestamp: time,
+        zoneId,
+        event: (flags & 1) === 1 ? 'enter' : 'exit',
+        location: { latitude: latitude / 1e7, longitude: longitude / 1e7 }
+      });
+    } else {
+      throw new Error(`Unknown record type ${type}`);
+    }
+  }
+  
+  return { deviceId, records };
+};
+
+// Helper function to read a request body sent as JSON or compact records,
+// gzipped or not
+const readDevicePayload = async (request) => {
+  const contentType = request.headers.get('Content-Type') || '';
+  
+  // Devices gzip large uploads; the runtime does not decode request bodies
+  let body = request;
+  if ((request.headers.get('Content-Encoding') || '').toLowerCase() === 'gzip') {
+    body = new Response(request.body.pipeThrough(new DecompressionStream('gzip')));
+  }
+  
+  if (contentType.startsWith(COMPACT_RECORDS_CONTENT_TYPE)) {
+    return decodeCompactRecords(await body.arrayBuffer());
+  }
+  
+  return body.json();
+};
+
+// Helper function to tell devices the write rates to pace themselves to
+const withWriteBudget = async (response) => {
+  response.headers.set('X-Write-Budget',
+    typeof WRITE_BUDGET !== 'undefined' ? WRITE_BUDGET : await deriveWriteBudget());
+  return response;
+};
+
+// Helper function to split the account's KV write quota across the
+// registered devices and their record classes
+const deriveWriteBudget = async () => {
+  const quota = typeof KV_WRITE_QUOTA !== 'undefined' ? Number(KV_WRITE_QUOTA) : DEFAULT_KV_WRITE_QUOTA;
+  const devices = Math.max(1, Number(await SENTRYCIRCLE_KV.get(DEVICE_COUNT_KEY,
+    { cacheTtl: DEVICE_COUNT_CACHE_TTL })) || 1);
+  const deviceWrites = quota * DEVICE_WRITE_SHARE / devices;
+  return WRITE_BUDGET_CLASSES.map(recordClass => {
+    const perDay = Math.min(recordClass.maxPerDay,
+      Math.max(1, Math.floor(deviceWrites * recordClass.share / recordClass.cost)));
+    return `${recordClass.key}=${perDay}/${Math.min(recordClass.burst, perDay)}`;
+  }).join(',');
+};
+
 // CORS headers for cross-origin requests
 const corsHeaders = {
   'Access-Control-Allow-Origin': '*',
   'Access-Control-Allow-Methods': 'GET, POST, PUT, DELETE, OPTIONS',
-  'Access-Control-Allow-Headers': 'Content-Type, Authorization',
+  'Access-Control-Allow-Headers': 'Content-Type, Content-Encoding, Authorization, If-None-Match',
+  'Access-Control-Expose-Headers': 'ETag',
 };
 
 // Main request handler
@@ -91,7 +260,7 @@ async function handleRequest(request) {
   if (url.pathname.startsWith('/api/auth')) {
     return handleAuth(request);
   } else if (url.pathname.startsWith('/api/location')) {
-    return handleLocation(request);
+    return withWriteBudget(await handleLocation(request));
   } else if (url.pathname.startsWith('/api/command')) {
     return handleCommand(request);
   } else if (url.pathname.startsWith('/api/family')) {
@@ -99,7 +268,9 @@ async function handleRequest(request) {
   } else if (url.pathname.startsWith('/api/child')) {
     return handleChild(request);
   } else if (url.pathname.startsWith('/api/device')) {
-    return handleDevice(request);
+    return withWriteBudget(await handleDevice(request));
+  } else if (url.pathname === '/api/sync' && request.method === 'POST') {
+    return withWriteBudget(await handleSync(request));
   } else if (url.pathname === '/api/health') {
     return new Response(JSON.stringify({ status: 'ok' }), { 
       headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
@@ -358,10 +529,37 @@ async function handleLocation(request) {
 // Location update handler
 async function handleLocationUpdate(request, auth) {
   try {
-    const { deviceId, location, timestamp, batteryLevel } = await request.json();
+    let payload;
+    try {
+      payload = await readDevicePayload(request);
+    } catch (error) {
+      return new Response(JSON.stringify({ error: error.message }), { 
+        status: error.status || 400, 
+        headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+      });
+    }
     
-    // Validate input
-    if (!deviceId || !location) {
+    // Compact payloads carry typed records; keep the location, geofence and
+    // usage ones, and the battery state from the last heartbeat record
+    if (payload.records) {
+      payload.locations = payload.records.filter(record => record.type === 'location');
+      payload.geofenceEvents = payload.records.filter(record => record.type === 'geofence');
+      payload.usage = payload.records.filter(record => record.type === 'usage');
+      const heartbeats = payload.records.filter(record => record.type === 'heartbeat');
+      if (heartbeats.length > 0) {
+        payload.batteryLevel = heartbeats[heartbeats.length - 1].batteryLevel;
+        payload.isCharging = heartbeats[heartbeats.length - 1].isCharging;
+      }
+    }
+    
+    const { deviceId, location, locations, timestamp, batteryLevel, isCharging, geofenceEvents, usage, sos } = payload;
+    
+    // Validate input (a single location, a batch of locations, geofence
+    // transitions evaluated on the device, app usage totals and/or an SOS)
+    const isBatch = Array.isArray(locations) && locations.length > 0;
+    const hasGeofenceEvents = Array.isArray(geofenceEvents) && geofenceEvents.length > 0;
+    const hasUsage = Array.isArray(usage) && usage.length > 0;
+    if (!deviceId || (!location && !isBatch && !hasGeofenceEvents && !hasUsage && !sos)) {
       return new Response(JSON.stringify({ error: 'Missing required fields' }), { 
         status: 400, 
         headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
@@ -410,16 +608,74 @@ async function handleLocationUpdate(request, auth) {
       }
     }
     
-    // Store the location update
-    const locationData = {
-      deviceId,
-      location,
-      timestamp: timestamp || Date.now(),
-      batteryLevel: batteryLevel || 100
-    };
+    // Battery state piggybacked on the upload stands in for a heartbeat
+    if (typeof batteryLevel === 'number') {
+      await refreshDeviceStatus(deviceId, device, batteryLevel, isCharging === true);
+    }
+    
+    // An SOS is kept apart from the history so guardians see it immediately
+    if (sos) {
+      await SENTRYCIRCLE_KV.put(`sos:${deviceId}`, JSON.stringify({
+        deviceId,
+        location: location || null,
+        timestamp: timestamp || Date.now(),
+        receivedAt: Date.now()
+      }));
+    }
+    
+    // Record geofence transitions, newest first, for the guardians' alerts
+    if (hasGeofenceEvents) {
+      const eventsKey = `geofenceEvents:${deviceId}`;
+      let events = (await SENTRYCIRCLE_KV.get(eventsKey, 'json')) || [];
+      
+      events.unshift(...geofenceEvents
+        .map(event => ({
+          deviceId,
+          zoneId: event.zoneId,
+          event: event.event,
+          location: event.location,
+          timestamp: event.timestamp || Date.now()
+        }))
+        .sort((a, b) => b.timestamp - a.timestamp));
+      
+      // Keep only the last 100 events
+      if (events.length > 100) {
+        events = events.slice(0, 100);
+      }
+      
+      await SENTRYCIRCLE_KV.put(eventsKey, JSON.stringify(events));
+    }
+    
+    // Add app usage totals onto the stored buckets, newest first
+    if (hasUsage) {
+      await recordUsage(deviceId, usage);
+    }
+    
+    // Transition or usage uploads and SOSes without a position carry no fixes to store
+    if (!location && !isBatch) {
+      return new Response(JSON.stringify({
+        success: true,
+        accepted: 0,
+        geofenceEvents: hasGeofenceEvents ? geofenceEvents.length : 0,
+        usage: hasUsage ? usage.length : 0
+      }), { 
+        headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+      });
+    }
+    
+    // Build the location updates, newest first. A batch costs the same two
+    // KV writes as a single update.
+    const updates = (isBatch ? locations : [{ location, timestamp, batteryLevel }])
+      .map(entry => ({
+        deviceId,
+        location: entry.location,
+        timestamp: entry.timestamp || Date.now(),
+        batteryLevel: entry.batteryLevel || batteryLevel || 100
+      }))
+      .sort((a, b) => b.timestamp - a.timestamp);
     
     // Store the current location
-    await SENTRYCIRCLE_KV.put(`currentLocation:${deviceId}`, JSON.stringify(locationData));
+    await SENTRYCIRCLE_KV.put(`currentLocation:${deviceId}`, JSON.stringify(updates[0]));
     
     // Add to location history
     const historyKey = `locationHistory:${deviceId}`;
@@ -434,7 +690,7 @@ async function handleLocationUpdate(request, auth) {
       // No existing history
     }
     
-    history.unshift(locationData);
+    history.unshift(...updates);
     
     // Keep only the last 100 locations
     if (history.length > 100) {
@@ -443,7 +699,7 @@ async function handleLocationUpdate(request, auth) {
     
     await SENTRYCIRCLE_KV.put(historyKey, JSON.stringify(history));
     
-    return new Response(JSON.stringify({ success: true }), { 
+    return new Response(JSON.stringify({ success: true, accepted: updates.length }), { 
       headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
     });
   } catch (error) {
@@ -454,6 +710,59 @@ async function handleLocationUpdate(request, auth) {
   }
 }
 
+// Helper function to add app usage totals, each for one package over one
+// bucket starting at its timestamp, onto the device's stored usage. The
+// device only sends time not yet sent, so totals for a bucket add up.
+async function recordUsage(deviceId, usage) {
+  const usageKey = `usage:${deviceId}`;
+  let entries = (await SENTRYCIRCLE_KV.get(usageKey, 'json')) || [];
+  
+  for (const cell of usage) {
+    if (!cell.packageName || typeof cell.timestamp !== 'number') {
+      continue;
+    }
+    const existing = entries.find(entry =>
+      entry.timestamp === cell.timestamp && entry.packageName === cell.packageName);
+    if (existing) {
+      existing.foregroundTime += cell.foregroundTime || 0;
+      existing.launchCount += cell.launchCount || 0;
+    } else {
+      entries.push({
+        timestamp: cell.timestamp,
+        packageName: cell.packageName,
+        foregroundTime: cell.foregroundTime || 0,
+        launchCount: cell.launchCount || 0
+      });
+    }
+  }
+  
+  // Keep only the last 1000 cells
+  entries.sort((a, b) => b.timestamp - a.timestamp);
+  if (entries.length > 1000) {
+    entries = entries.slice(0, 1000);
+  }
+  
+  await SENTRYCIRCLE_KV.put(usageKey, JSON.stringify(entries));
+}
+
+// Helper function to record a device's battery state and liveness. The
+// device record is only rewritten when the state changed or has gone stale,
+// so frequent uploads do not each cost a write.
+async function refreshDeviceStatus(deviceId, device, batteryLevel, isCharging) {
+  const now = Date.now();
+  const status = device.status || {};
+  if (status.batteryLevel === batteryLevel && status.isCharging === isCharging &&
+      now - (status.timestamp || 0) < STATUS_REFRESH_INTERVAL) {
+    return;
+  }
+  
+  // Merged into the versioned status: the device treats these fields as
+  // acknowledged once the upload is accepted
+  device.status = { ...status, timestamp: now, batteryLevel, isCharging };
+  device.updatedAt = now;
+  await SENTRYCIRCLE_KV.put(`device:${deviceId}`, JSON.stringify(device));
+}
+
 // Location retrieval handler
 async function handleLocationRetrieval(request, deviceId, auth) {
   try {
@@ -537,6 +846,15 @@ async function handleLocationRetrieval(request, deviceId, auth) {
   }
 }
 
+// Helper function to give a device's command list a new version. The
+// version record also names the device owner, so a poll by the device
+// itself can be answered 304 from this one read.
+const bumpCommandsVersion = async (deviceId, device) => {
+  const version = { etag: `"${crypto.randomUUID()}"`, userId: device.userId };
+  await SENTRYCIRCLE_KV.put(`commandsVersion:${deviceId}`, JSON.stringify(version));
+  return version;
+};
+
 // Command handler
 async function handleCommand(request) {
   // Authenticate the request
@@ -671,6 +989,7 @@ async function handleCommandCreation(request, auth) {
     }
     
     await SENTRYCIRCLE_KV.put(commandsKey, JSON.stringify(commands));
+    await bumpCommandsVersion(deviceId, device);
     
     return new Response(JSON.stringify({ 
       success: true,
@@ -689,6 +1008,18 @@ async function handleCommandCreation(request, auth) {
 // Command retrieval handler
 async function handleCommandRetrieval(request, deviceId, auth) {
   try {
+    // A device polling its own commands with the current version gets a 304
+    // from a single read, without the per-command fan-out below
+    const ifNoneMatch = request.headers.get('If-None-Match');
+    let version = await SENTRYCIRCLE_KV.get(`commandsVersion:${deviceId}`, 'json');
+    
+    if (version && ifNoneMatch === version.etag && version.userId === auth.userId) {
+      return new Response(null, { 
+        status: 304, 
+        headers: { ...corsHeaders, 'ETag': version.etag } 
+      });
+    }
+    
     // Verify device access
     const deviceJson = await SENTRYCIRCLE_KV.get(`device:${deviceId}`);
     if (!deviceJson) {
@@ -724,6 +1055,18 @@ async function handleCommandRetrieval(request, deviceId, auth) {
       });
     }
     
+    // Commands stored before versioning get a version on first retrieval
+    if (!version) {
+      version = await bumpCommandsVersion(deviceId, device);
+    }
+    
+    if (ifNoneMatch === version.etag) {
+      return new Response(null, { 
+        status: 304, 
+        headers: { ...corsHeaders, 'ETag': version.etag } 
+      });
+    }
+    
     // Get the device's command list
     const commandsKey = `commands:${deviceId}`;
     let commandIds = [];
@@ -757,7 +1100,7 @@ async function handleCommandRetrieval(request, deviceId, auth) {
     }
     
     return new Response(JSON.stringify({ commands }), { 
-      headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+      headers: { ...corsHeaders, 'Content-Type': 'application/json', 'ETag': version.etag } 
     });
   } catch (error) {
     return new Response(JSON.stringify({ error: error.message }), { 
@@ -831,6 +1174,7 @@ async function handleCommandUpdate(request, deviceId, commandId, auth) {
     
     // Store the updated command
     await SENTRYCIRCLE_KV.put(`command:${deviceId}:${commandId}`, JSON.stringify(command));
+    await bumpCommandsVersion(deviceId, device);
     
     return new Response(JSON.stringify({ 
       success: true,
@@ -1403,6 +1747,11 @@ async function handleDeviceRegistration(request, auth) {
     child.devices.push(deviceId);
     await SENTRYCIRCLE_KV.put(`child:${childId}`, JSON.stringify(child));
     
+    // Count the device toward the write budget split. Concurrent
+    // registrations may undercount; the split only needs to be close.
+    const deviceCount = Number(await SENTRYCIRCLE_KV.get(DEVICE_COUNT_KEY)) || 0;
+    await SENTRYCIRCLE_KV.put(DEVICE_COUNT_KEY, String(deviceCount + 1));
+    
     return new Response(JSON.stringify({ 
       success: true,
       device
@@ -1521,7 +1870,7 @@ async function handleDeviceUpdate(request, deviceId, auth) {
     }
     
     // Update the device
-    const { name, status } = await request.json();
+    const { name, status, statusDelta } = await request.json();
     
     if (name) {
       device.name = name;
@@ -1531,11 +1880,39 @@ async function handleDeviceUpdate(request, deviceId, auth) {
       device.status = status;
     }
     
+    // Versioned status from the device: a keyframe replaces the status, a
+    // delta applies on top of the version it was computed against
+    if (statusDelta) {
+      const currentVersion = device.statusVersion || 0;
+      if (!statusDelta.keyframe && statusDelta.baseVersion !== currentVersion) {
+        return new Response(JSON.stringify({ error: 'Status version mismatch', statusVersion: currentVersion }), { 
+          status: 409, 
+          headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+        });
+      }
+      
+      const merged = statusDelta.keyframe ? {} : { ...device.status };
+      Object.assign(merged, statusDelta.fields || {});
+      for (const field of statusDelta.removed || []) {
+        delete merged[field];
+      }
+      merged.timestamp = statusDelta.timestamp || Date.now();
+      device.status = merged;
+      device.statusVersion = statusDelta.version;
+    }
+    
     device.updatedAt = Date.now();
     
     // Store the updated device
     await SENTRYCIRCLE_KV.put(`device:${deviceId}`, JSON.stringify(device));
     
+    // The device only needs to know its snapshot was applied
+    if (statusDelta) {
+      return new Response(JSON.stringify({ success: true, statusVersion: device.statusVersion }), { 
+        headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+      });
+    }
+    
     return new Response(JSON.stringify({ 
       success: true,
       device
@@ -1549,3 +1926,94 @@ async function handleDeviceUpdate(request, deviceId, auth) {
     });
   }
 }
+
+// Sync handler: a device sends everything it has for one wake window (fixes,
+// geofence events, status, command acks) as typed records in one request.
+// Each record is applied like the matching single-purpose request and gets
+// its own result, so the device retries only the records that failed.
+async function handleSync(request) {
+  // Authenticate the request
+  const authHeader = request.headers.get('Authorization');
+  if (!authHeader || !authHeader.startsWith('Bearer ')) {
+    return new Response(JSON.stringify({ error: 'Unauthorized' }), { 
+      status: 401, 
+      headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+    });
+  }
+  
+  const token = authHeader.split(' ')[1];
+  const authResult = await verifyJWT(token);
+  
+  if (!authResult.valid) {
+    return new Response(JSON.stringify({ error: authResult.reason }), { 
+      status: 401, 
+      headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+    });
+  }
+  
+  let envelope;
+  try {
+    envelope = await readDevicePayload(request);
+  } catch (error) {
+    return new Response(JSON.stringify({ error: error.message }), { 
+      status: error.status || 400, 
+      headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+    });
+  }
+  
+  const { deviceId, records } = envelope;
+  if (!deviceId || !Array.isArray(records) || records.length === 0 || records.length > MAX_SYNC_RECORDS) {
+    return new Response(JSON.stringify({ error: 'Missing or too many records' }), { 
+      status: 400, 
+      headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+    });
+  }
+  
+  // Records are applied in order: a later status or ack may depend on an earlier record
+  const results = [];
+  for (const record of records) {
+    const { id, type, ...fields } = record;
+    let response;
+    try {
+      response = await applySyncRecord(deviceId, type, fields, authHeader, authResult.payload);
+    } catch (error) {
+      response = new Response(JSON.stringify({ error: error.message }), { status: 500 });
+    }
+    
+    const result = { id, ok: response.ok, status: response.status };
+    if (!response.ok) {
+      try {
+        result.error = (await response.json()).error;
+      } catch (e) {
+        // No error detail
+      }
+    }
+    results.push(result);
+  }
+  
+  return new Response(JSON.stringify({ success: true, results }), { 
+    headers: { ...corsHeaders, 'Content-Type': 'application/json' } 
+  });
+}
+
+// Helper function to apply one sync record through the handler of the
+// equivalent single-purpose request
+const applySyncRecord = async (deviceId, type, fields, authHeader, auth) => {
+  const recordRequest = (path, method, body) => new Request(`https://sync.internal${path}`, {
+    method,
+    headers: { 'Content-Type': 'application/json', 'Authorization': authHeader },
+    body: JSON.stringify(body)
+  });
+  
+  if (type === 'locations' || type === 'geofenceEvents' || type === 'usage' || type === 'sos') {
+    return handleLocationUpdate(recordRequest('/api/location', 'POST', { ...fields, deviceId }), auth);
+  } else if (type === 'status') {
+    return handleDeviceUpdate(recordRequest(`/api/device/${deviceId}`, 'PUT', fields), deviceId, auth);
+  } else if (type === 'commandAck') {
+    const { commandId, ...update } = fields;
+    return handleCommandUpdate(recordRequest(`/api/command/${deviceId}/${commandId}`, 'PUT', update),
+      deviceId, commandId, auth);
+  }
+  
+  return new Response(JSON.stringify({ error: `Unknown record type ${type}` }), { status: 400 });
+};
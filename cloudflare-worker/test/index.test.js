@@ -1,5 +1,6 @@
 const { unstable_dev } = require('wrangler');
 const jwt = require('jsonwebtoken');
+const zlib = require('zlib');
 
 // Mock KV namespace
 const mockKV = {
@@ -282,6 +283,72 @@ describe('SentryCircle API', () => {
       expect(data.name).toBe('Test Device');
       expect(mockKV.put).toHaveBeenCalled();
     });
+
+    test('should apply a status delta on top of its base version', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+            status: { timestamp: 1, batteryLevel: 80, network: 'metered', appVersion: '1.0' },
+            statusVersion: 4,
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/device/device-id', {
+        method: 'PUT',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          statusDelta: { version: 5, baseVersion: 4, timestamp: 2, fields: { network: 'unmetered' }, removed: ['appVersion'] },
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      const device = JSON.parse(mockKV.put.mock.calls[0][1]);
+      expect(device.statusVersion).toBe(5);
+      expect(device.status).toEqual({ timestamp: 2, batteryLevel: 80, network: 'unmetered' });
+    });
+
+    test('should reject a status delta against an unknown version', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+            statusVersion: 4,
+          });
+        }
+        return null;
+      });
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/device/device-id', {
+        method: 'PUT',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          statusDelta: { version: 3, baseVersion: 2, timestamp: 2, fields: { batteryLevel: 79 } },
+        }),
+      });
+
+      expect(resp.status).toBe(409);
+      expect(mockKV.put).not.toHaveBeenCalled();
+    });
   });
 
   describe('Location Tracking', () => {
@@ -323,6 +390,355 @@ describe('SentryCircle API', () => {
       expect(data.success).toBe(true);
       expect(mockKV.put).toHaveBeenCalled();
     });
+
+    test('should announce the write budget to the device', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          locations: [{ location: { latitude: 37.7749, longitude: -122.4194, accuracy: 10 }, timestamp: 1000 }],
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      expect(resp.headers.get('X-Write-Budget')).toMatch(/location=\d+\/\d+/);
+    });
+
+    test('should split the write quota across registered devices', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        } else if (key === 'deviceCount') {
+          return '8';
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          locations: [{ location: { latitude: 37.7749, longitude: -122.4194, accuracy: 10 }, timestamp: 1000 }],
+        }),
+      });
+
+      // 800 of the 1,000 daily writes, shared by 8 devices
+      expect(resp.status).toBe(200);
+      expect(resp.headers.get('X-Write-Budget')).toBe('location=13/4,geofence=10/6,status=20/3,usage=10/2');
+    });
+
+    test('should accept a compact binary location batch', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      // 'SC' v1, deviceId, two location records as zigzag varint deltas
+      const varint = (value) => {
+        const out = [];
+        while (value >= 128) {
+          out.push((value % 128) | 0x80);
+          value = Math.floor(value / 128);
+        }
+        out.push(value);
+        return out;
+      };
+      const zigzag = (value) => varint(value >= 0 ? value * 2 : -value * 2 - 1);
+      const deviceId = Array.from(Buffer.from('device-id'));
+      const body = Uint8Array.from([
+        0x53, 0x43, 1,
+        ...varint(deviceId.length), ...deviceId,
+        ...varint(2),
+        1, ...zigzag(1700000000000), ...zigzag(377749000), ...zigzag(-1224194000), ...varint(100),
+        1, ...zigzag(60000), ...zigzag(300), ...zigzag(-400), ...varint(80),
+      ]);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/x-sentrycircle-records',
+          'Authorization': `Bearer ${token}`,
+        },
+        body,
+      });
+
+      expect(resp.status).toBe(200);
+      const data = await resp.json();
+      expect(data.accepted).toBe(2);
+      // One batch costs the same two writes as a single fix
+      expect(mockKV.put).toHaveBeenCalledTimes(2);
+    });
+
+    test('should accept a gzipped location batch', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+      const locations = Array.from({ length: 50 }, (_, i) => ({
+        location: { latitude: 37.7749 + i * 0.0001, longitude: -122.4194, accuracy: 10 },
+        timestamp: 1700000000000 + i * 60000,
+      }));
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Content-Encoding': 'gzip',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: zlib.gzipSync(JSON.stringify({ deviceId: 'device-id', locations })),
+      });
+
+      expect(resp.status).toBe(200);
+      const data = await resp.json();
+      expect(data.accepted).toBe(50);
+    });
+
+    test('should record the battery state piggybacked on an upload', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          location: { latitude: 37.7749, longitude: -122.4194, accuracy: 12 },
+          timestamp: Date.now(),
+          batteryLevel: 42,
+          isCharging: false,
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      // The upload stands in for a heartbeat
+      expect(mockKV.put.mock.calls[0][0]).toBe('device:device-id');
+      const device = JSON.parse(mockKV.put.mock.calls[0][1]);
+      expect(device.status.batteryLevel).toBe(42);
+      expect(device.status.isCharging).toBe(false);
+    });
+
+    test('should not rewrite a fresh, unchanged device status', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+            status: { timestamp: Date.now(), batteryLevel: 42, isCharging: false },
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          location: { latitude: 37.7749, longitude: -122.4194, accuracy: 12 },
+          timestamp: Date.now(),
+          batteryLevel: 42,
+          isCharging: false,
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      expect(mockKV.put).toHaveBeenCalledTimes(2);
+      expect(mockKV.put.mock.calls.map(call => call[0])).not.toContain('device:device-id');
+    });
+
+    test('should record geofence transitions without touching location history', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          geofenceEvents: [{
+            zoneId: 'school',
+            event: 'enter',
+            location: { latitude: 37.7749, longitude: -122.4194 },
+            timestamp: Date.now(),
+          }],
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      const data = await resp.json();
+      expect(data.geofenceEvents).toBe(1);
+      expect(mockKV.put).toHaveBeenCalledTimes(1);
+      expect(mockKV.put.mock.calls[0][0]).toBe('geofenceEvents:device-id');
+    });
+
+    test('should add usage totals onto the stored buckets', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        } else if (key === 'usage:device-id') {
+          return [{ timestamp: 1700000100000, packageName: 'com.example.game', foregroundTime: 60000, launchCount: 1 }];
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          usage: [
+            { timestamp: 1700000100000, packageName: 'com.example.game', foregroundTime: 30000, launchCount: 0 },
+            { timestamp: 1700001000000, packageName: 'com.example.chat', foregroundTime: 5000, launchCount: 2 },
+          ],
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      const data = await resp.json();
+      expect(data.usage).toBe(2);
+      expect(mockKV.put).toHaveBeenCalledTimes(1);
+      expect(mockKV.put.mock.calls[0][0]).toBe('usage:device-id');
+      const stored = JSON.parse(mockKV.put.mock.calls[0][1]);
+      expect(stored).toEqual([
+        { timestamp: 1700001000000, packageName: 'com.example.chat', foregroundTime: 5000, launchCount: 2 },
+        { timestamp: 1700000100000, packageName: 'com.example.game', foregroundTime: 90000, launchCount: 1 },
+      ]);
+    });
+
+    test('should store an SOS apart from the location history', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/location', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          location: { latitude: 37.7749, longitude: -122.4194, accuracy: 12 },
+          timestamp: Date.now(),
+          sos: true,
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      expect(mockKV.put.mock.calls[0][0]).toBe('sos:device-id');
+    });
   });
 
   describe('Command System', () => {
@@ -380,5 +796,132 @@ describe('SentryCircle API', () => {
       expect(data.type).toBe('CHECK_IN');
       expect(mockKV.put).toHaveBeenCalled();
     });
+
+    test('should answer an unchanged command poll with 304 after one read', async () => {
+      mockKV.get.mockImplementation((key, type) => {
+        if (key === 'commandsVersion:device-id' && type === 'json') {
+          return { etag: '"v1"', userId: 'device-id' };
+        }
+        return null;
+      });
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/command/device-id?status=pending', {
+        headers: {
+          'Authorization': `Bearer ${token}`,
+          'If-None-Match': '"v1"',
+        },
+      });
+
+      expect(resp.status).toBe(304);
+      expect(resp.headers.get('ETag')).toBe('"v1"');
+      expect(mockKV.get).toHaveBeenCalledTimes(1);
+    });
+
+    test('should return changed commands with their version', async () => {
+      mockKV.get.mockImplementation((key, type) => {
+        if (key === 'commandsVersion:device-id' && type === 'json') {
+          return { etag: '"v2"', userId: 'device-id' };
+        } else if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+          });
+        } else if (key === 'commands:device-id' && type === 'json') {
+          return ['command-id'];
+        } else if (key === 'command:device-id:command-id') {
+          return JSON.stringify({ id: 'command-id', type: 'CHECK_IN', status: 'pending' });
+        }
+        return null;
+      });
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/command/device-id?status=pending', {
+        headers: {
+          'Authorization': `Bearer ${token}`,
+          'If-None-Match': '"v1"',
+        },
+      });
+
+      expect(resp.status).toBe(200);
+      expect(resp.headers.get('ETag')).toBe('"v2"');
+      const data = await resp.json();
+      expect(data.commands).toHaveLength(1);
+      expect(data.commands[0].id).toBe('command-id');
+    });
+  });
+
+  describe('Sync', () => {
+    test('should apply each record of an envelope and report failures per record', async () => {
+      mockKV.get.mockImplementation((key) => {
+        if (key === 'device:device-id') {
+          return JSON.stringify({
+            id: 'device-id',
+            name: 'Test Device',
+            childId: 'child-id',
+            userId: 'device-id',
+            statusVersion: 4,
+          });
+        }
+        return null;
+      });
+      mockKV.put.mockResolvedValue(undefined);
+
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/sync', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({
+          deviceId: 'device-id',
+          records: [
+            {
+              id: '0',
+              type: 'locations',
+              locations: [{ location: { latitude: 37.7749, longitude: -122.4194, accuracy: 10 }, timestamp: 1000 }],
+              batteryLevel: 80,
+              isCharging: false,
+            },
+            {
+              id: '1',
+              type: 'status',
+              statusDelta: { version: 3, baseVersion: 2, timestamp: 2, fields: { network: 'metered' } },
+            },
+            { id: '2', type: 'unknown' },
+          ],
+        }),
+      });
+
+      expect(resp.status).toBe(200);
+      const data = await resp.json();
+      expect(data.results).toEqual([
+        { id: '0', ok: true, status: 200 },
+        { id: '1', ok: false, status: 409, error: 'Status version mismatch' },
+        { id: '2', ok: false, status: 400, error: 'Unknown record type unknown' },
+      ]);
+    });
+
+    test('should reject an empty envelope', async () => {
+      const token = jwt.sign({ userId: 'device-id', type: 'device' }, JWT_SECRET);
+
+      const resp = await worker.fetch('/api/sync', {
+        method: 'POST',
+        headers: {
+          'Content-Type': 'application/json',
+          'Authorization': `Bearer ${token}`,
+        },
+        body: JSON.stringify({ deviceId: 'device-id', records: [] }),
+      });
+
+      expect(resp.status).toBe(400);
+      expect(mockKV.put).not.toHaveBeenCalled();
+    });
   });
 });
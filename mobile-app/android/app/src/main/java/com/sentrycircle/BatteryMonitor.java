@@ -0,0 +1,162 @@
+package com.sentrycircle;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks battery state from ACTION_BATTERY_CHANGED broadcasts.
+ *
+ * The latest state is published as an immutable {@link Snapshot} through an
+ * atomic reference, so any thread (the heartbeat, the upload policy, the
+ * React Native bridge) reads it without a binder call. A new snapshot is
+ * only published when a field we report changes.
+ *
+ * Plugging in, unplugging and crossing the low-battery threshold are
+ * reported to the listener as they happen.
+ */
+class BatteryMonitor {
+    // At or below this level (%) the battery is low
+    static final int LOW_LEVEL = 15;
+    // The low state clears once the level is back above this (%)
+    private static final int LOW_CLEAR_LEVEL = 20;
+
+    enum Event {
+        PLUGGED,
+        UNPLUGGED,
+        LOW,
+        LOW_CLEARED
+    }
+
+    interface Listener {
+        // Called with every newly published snapshot, including the first
+        void onBatteryChanged(Snapshot snapshot);
+
+        // Called on the monitor's handler thread
+        void onBatteryEvent(Event event, Snapshot snapshot);
+    }
+
+    static final class Snapshot {
+        // Charge level (%), or -1 if unknown
+        final int level;
+        final boolean charging;
+        final boolean low;
+        // Battery temperature in tenths of a degree Celsius
+        final int temperature;
+        // When this state was observed (elapsed realtime)
+        final long elapsedTime;
+
+        Snapshot(int level, boolean charging, boolean low, int temperature, long elapsedTime) {
+            this.level = level;
+            this.charging = charging;
+            this.low = low;
+            this.temperature = temperature;
+            this.elapsedTime = elapsedTime;
+        }
+
+        // Same reported state, ignoring when it was observed
+        boolean sameState(Snapshot other) {
+            return other != null && level == other.level && charging == other.charging
+                    && low == other.low && temperature / 10 == other.temperature / 10;
+        }
+    }
+
+    // Process-wide latest state, for readers without a reference to the service
+    private static final AtomicReference<Snapshot> LATEST = new AtomicReference<>();
+
+    private final Context context;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    private Listener listener;
+    private long updates;
+    private long published;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update(intent, true);
+        }
+    };
+
+    BatteryMonitor(Context context) {
+        this.context = context;
+    }
+
+    // Latest snapshot of any running monitor, or null before one has started
+    static Snapshot latest() {
+        return LATEST.get();
+    }
+
+    // Start receiving battery broadcasts on the given handler. The current
+    // state is read from the sticky broadcast right away.
+    void start(Handler handler, Listener listener) {
+        this.listener = listener;
+        Intent sticky = context.registerReceiver(receiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, handler);
+        if (sticky != null) {
+            update(sticky, false);
+        }
+    }
+
+    void stop() {
+        context.unregisterReceiver(receiver);
+        listener = null;
+    }
+
+    // Latest snapshot; never null once started
+    Snapshot get() {
+        Snapshot snapshot = current.get();
+        return snapshot != null ? snapshot : new Snapshot(-1, false, false, 0, 0);
+    }
+
+    String getStats() {
+        Snapshot snapshot = get();
+        return "level=" + snapshot.level + " charging=" + snapshot.charging + " low=" + snapshot.low
+                + " broadcasts=" + updates + " published=" + published;
+    }
+
+    private void update(Intent intent, boolean notify) {
+        updates++;
+        int rawLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int level = rawLevel >= 0 && scale > 0 ? rawLevel * 100 / scale : -1;
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0
+                || status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL;
+        int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+
+        Snapshot previous = current.get();
+        boolean wasLow = previous != null && previous.low;
+        boolean low = !charging && level >= 0
+                && (level <= LOW_LEVEL || (wasLow && level <= LOW_CLEAR_LEVEL));
+
+        Snapshot snapshot = new Snapshot(level, charging, low, temperature, SystemClock.elapsedRealtime());
+        if (snapshot.sameState(previous)) {
+            return;
+        }
+        current.set(snapshot);
+        LATEST.set(snapshot);
+        published++;
+
+        Listener currentListener = listener;
+        if (currentListener == null) {
+            return;
+        }
+        currentListener.onBatteryChanged(snapshot);
+        if (!notify || previous == null) {
+            return;
+        }
+        if (charging != previous.charging) {
+            currentListener.onBatteryEvent(charging ? Event.PLUGGED : Event.UNPLUGGED, snapshot);
+        }
+        if (low != previous.low) {
+            currentListener.onBatteryEvent(low ? Event.LOW : Event.LOW_CLEARED, snapshot);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.sentrycircle;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides when deferrable uploads may use the network.
+ *
+ * Bulk data is held back until sending is cheap: the device is charging,
+ * the network is unmetered, or the platform has just opened an idle
+ * maintenance window. Data older than its lane's max staleness is sent
+ * regardless, so freshness has a hard bound. Nothing is sent while offline.
+ *
+ * Conditions are tracked from the battery snapshot, the idle broadcast and
+ * the default network callback, so a decision is a handful of field reads.
+ * When conditions turn favourable the listener is told, so held-back data
+ * can go out right away; plugging in is reported by the {@link BatteryMonitor}.
+ * Coming back online is reported too, so waiting retries can resume at once.
+ */
+class BulkUploadPolicy {
+    private static final String TAG = "BulkUploadPolicy";
+    // How long after the device leaves idle its maintenance window is assumed open
+    private static final long MAINTENANCE_WINDOW = 60 * 1000; // 1 minute
+
+    interface Listener {
+        // Called on the policy's handler thread when uploads became cheap
+        void onConditionsImproved();
+
+        // Called on the policy's handler thread when the device is back online
+        void onConnectivityRestored();
+    }
+
+    private static final class LaneStats {
+        final LatencyHistogram staleness = new LatencyHistogram();
+        long deferrals;
+        long deferredBytes;
+        long totalDeferredBytes;
+        long sentCharging;
+        long sentUnmetered;
+        long sentMaintenance;
+        long sentStale;
+    }
+
+    private final Context context;
+    private final BatteryMonitor batteryMonitor;
+    private final LaneStats[] stats = new LaneStats[UploadScheduler.Lane.values().length];
+
+    private volatile boolean connected = true;
+    private volatile boolean unmetered;
+    private volatile long maintenanceWindowEnd;
+
+    private Listener listener;
+    private ConnectivityManager connectivityManager;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED.equals(action)) {
+                PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+                if (!powerManager.isDeviceIdleMode()) {
+                    maintenanceWindowEnd = SystemClock.elapsedRealtime() + MAINTENANCE_WINDOW;
+                    notifyImproved();
+                }
+            }
+        }
+    };
+
+    BulkUploadPolicy(Context context, BatteryMonitor batteryMonitor) {
+        this.context = context;
+        this.batteryMonitor = batteryMonitor;
+        for (UploadScheduler.Lane lane : UploadScheduler.Lane.values()) {
+            stats[lane.ordinal()] = new LaneStats();
+        }
+    }
+
+    // Start tracking conditions; callbacks run on the given handler
+    void start(Handler handler, Listener listener) {
+        this.listener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            context.registerReceiver(receiver,
+                    new IntentFilter(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED), null, handler);
+        }
+
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            connected = connectivityManager.getActiveNetwork() != null;
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    boolean wasConnected = connected;
+                    boolean wasUnmetered = unmetered;
+                    connected = true;
+                    unmetered = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+                    if (!wasConnected) {
+                        notifyConnected();
+                    }
+                    if (unmetered && !wasUnmetered) {
+                        notifyImproved();
+                    }
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    connected = false;
+                    unmetered = false;
+                }
+            };
+            connectivityManager.registerDefaultNetworkCallback(networkCallback, handler);
+        } else {
+            unmetered = !connectivityManager.isActiveNetworkMetered();
+        }
+    }
+
+    void stop() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            context.unregisterReceiver(receiver);
+        }
+        if (networkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        listener = null;
+    }
+
+    // Decide whether a deferrable upload may go now. producedAt is when its
+    // oldest data was recorded (wall clock); pendingBytes estimates how much
+    // data is waiting in the lane.
+    boolean allows(UploadScheduler.Lane lane, long producedAt, long pendingBytes) {
+        LaneStats laneStats = stats[lane.ordinal()];
+        long staleness = Math.max(0, System.currentTimeMillis() - producedAt);
+        if (!connected) {
+            return defer(laneStats, pendingBytes);
+        }
+
+        boolean charging = batteryMonitor.get().charging;
+        boolean send = true;
+        synchronized (this) {
+            if (charging) {
+                laneStats.sentCharging++;
+            } else if (unmetered) {
+                laneStats.sentUnmetered++;
+            } else if (SystemClock.elapsedRealtime() < maintenanceWindowEnd) {
+                laneStats.sentMaintenance++;
+            } else if (staleness >= lane.maxStaleness) {
+                laneStats.sentStale++;
+            } else {
+                send = false;
+            }
+            if (send) {
+                laneStats.deferredBytes = 0;
+            }
+        }
+        if (!send) {
+            return defer(laneStats, pendingBytes);
+        }
+        laneStats.staleness.record(staleness);
+        return true;
+    }
+
+    // Whether allows() would hold the lane back now; counts nothing, so
+    // callers can ask before spending a wakeup on an upload
+    boolean isDeferring(UploadScheduler.Lane lane, long producedAt) {
+        if (!connected) {
+            return true;
+        }
+        return !batteryMonitor.get().charging && !unmetered
+                && SystemClock.elapsedRealtime() >= maintenanceWindowEnd
+                && System.currentTimeMillis() - producedAt < lane.maxStaleness;
+    }
+
+    // "offline", "unmetered" or "metered", for the device status
+    String getNetworkType() {
+        if (!connected) {
+            return "offline";
+        }
+        return unmetered ? "unmetered" : "metered";
+    }
+
+    // Bytes currently held back across all lanes
+    synchronized long getDeferredBytes() {
+        long total = 0;
+        for (LaneStats laneStats : stats) {
+            total += laneStats.deferredBytes;
+        }
+        return total;
+    }
+
+    synchronized String getStats() {
+        StringBuilder summary = new StringBuilder("charging=").append(batteryMonitor.get().charging)
+                .append(" connected=").append(connected)
+                .append(" unmetered=").append(unmetered);
+        for (UploadScheduler.Lane lane : UploadScheduler.Lane.values()) {
+            if (lane.urgent) {
+                continue;
+            }
+            LaneStats laneStats = stats[lane.ordinal()];
+            summary.append("; ").append(lane)
+                    .append(": staleness ").append(laneStats.staleness.getSummary())
+                    .append(" maxStalenessMs=").append(lane.maxStaleness)
+                    .append(" deferrals=").append(laneStats.deferrals)
+                    .append(" deferredBytes=").append(laneStats.deferredBytes)
+                    .append(" totalDeferredBytes=").append(laneStats.totalDeferredBytes)
+                    .append(" sent(charging/unmetered/maintenance/stale)=")
+                    .append(laneStats.sentCharging).append('/')
+                    .append(laneStats.sentUnmetered).append('/')
+                    .append(laneStats.sentMaintenance).append('/')
+                    .append(laneStats.sentStale);
+        }
+        return summary.toString();
+    }
+
+    private synchronized boolean defer(LaneStats laneStats, long pendingBytes) {
+        laneStats.deferrals++;
+        // Only newly queued data adds to the running total
+        laneStats.totalDeferredBytes += Math.max(0, pendingBytes - laneStats.deferredBytes);
+        laneStats.deferredBytes = pendingBytes;
+        return false;
+    }
+
+    private void notifyConnected() {
+        Listener current = listener;
+        if (current != null) {
+            Log.d(TAG, "Connectivity restored");
+            current.onConnectivityRestored();
+        }
+    }
+
+    private void notifyImproved() {
+        Listener current = listener;
+        if (current != null) {
+            Log.d(TAG, "Upload conditions improved");
+            current.onConditionsImproved();
+        }
+    }
+}
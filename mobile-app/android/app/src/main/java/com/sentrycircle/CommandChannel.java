@@ -0,0 +1,368 @@
+package com.sentrycircle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Receives parent commands for this device.
+ *
+ * Three ways to learn about new commands, cheapest first:
+ * - a push nudge (e.g. a data message) calls {@link #nudge} to fetch now;
+ * - a long poll, if the server advertises support with an X-Long-Poll header,
+ *   keeps one request parked until commands change;
+ * - otherwise, conditional polls triggered by the caller, which cost a single
+ *   304 when nothing changed.
+ *
+ * All fetches send If-None-Match with the last seen ETag. Requests share the
+ * service's pooled {@link MonitoringHttpClient}, so a parked long poll and
+ * the uploads can share a single HTTP/2 connection, and go through its
+ * {@link RetryEngine}: fetches wait while the command endpoint's breaker is
+ * open, and fetches after a failure draw on the retry budget.
+ */
+class CommandChannel {
+    private static final String TAG = "CommandChannel";
+    private static final String ENDPOINT = "/api/command";
+    // How long the server may park a long poll (seconds)
+    private static final int LONG_POLL_WAIT_SECONDS = 280;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final long MIN_ERROR_BACKOFF_MS = 5 * 1000;
+    private static final long MAX_ERROR_BACKOFF_MS = 10 * 60 * 1000;
+
+    interface Listener {
+        // Called on the channel thread for each newly seen pending command
+        void onCommand(JSONObject command);
+    }
+
+    private final String baseUrl;
+    private final String deviceId;
+    private final String authToken;
+    private final Listener listener;
+    private final Set<String> dispatched = new HashSet<>();
+    private final Object lock = new Object();
+    private final MonitoringHttpClient http = MonitoringHttpClient.get();
+    // Waits out a parked long poll, on the shared connection pool
+    private final OkHttpClient longPollClient;
+
+    private Thread thread;
+    private volatile Call currentCall;
+    private volatile boolean running;
+    private boolean fetchRequested;
+    // Keeps the CPU awake until the requested fetch has been dispatched
+    private WakeLeaseManager.Lease fetchLease;
+    private boolean longPollSupported = true;
+    private String etag;
+    private long errorBackoff = MIN_ERROR_BACKOFF_MS;
+    // The last fetch failed, so the next one is a retry
+    private boolean retrying;
+
+    private long requestCount;
+    private long notModifiedCount;
+    private long commandCount;
+
+    CommandChannel(String baseUrl, String deviceId, String authToken, Listener listener) {
+        this.baseUrl = baseUrl;
+        this.deviceId = deviceId;
+        this.authToken = authToken;
+        this.listener = listener;
+        this.longPollClient = http.withReadTimeout((LONG_POLL_WAIT_SECONDS + 30) * 1000L);
+    }
+
+    void start() {
+        running = true;
+        fetchRequested = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "SentryCircle-Commands");
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        WakeLeaseManager.Lease lease;
+        synchronized (lock) {
+            lease = fetchLease;
+            fetchLease = null;
+            lock.notifyAll();
+        }
+        if (lease != null) {
+            lease.close();
+        }
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Fetch as soon as possible: a push arrived or a poll is due. The lease,
+    // if any, keeps the CPU awake until the fetched commands are dispatched;
+    // the channel closes it.
+    void nudge(WakeLeaseManager.Lease lease) {
+        WakeLeaseManager.Lease previous;
+        synchronized (lock) {
+            fetchRequested = true;
+            previous = fetchLease;
+            fetchLease = lease;
+            lock.notifyAll();
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // True while a parked long poll is delivering commands; polling is unnecessary
+    boolean isLongPolling() {
+        synchronized (lock) {
+            return longPollSupported;
+        }
+    }
+
+    // Report a command's outcome to the server
+    boolean acknowledge(String commandId, String status, JSONObject result) {
+        try {
+            JSONObject body = new JSONObject();
+            body.put("status", status);
+            if (result != null) {
+                body.put("result", result);
+            }
+
+            Request request = http.body(http.request(baseUrl + ENDPOINT + "/" + deviceId + "/" + commandId, authToken),
+                    "PUT", "application/json", body.toString().getBytes(StandardCharsets.UTF_8), false).build();
+            try (Response response = http.execute(request)) {
+                return acknowledged(commandId, response.code());
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Acknowledge of " + commandId + " failed", e);
+            return false;
+        }
+    }
+
+    // The acknowledgement as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload acknowledgeUpload(final String commandId, final String status,
+            final JSONObject result) {
+        return new UploadScheduler.SyncUpload() {
+            @Override
+            public boolean send() {
+                return acknowledge(commandId, status, result);
+            }
+
+            @Override
+            public String endpoint() {
+                return ENDPOINT;
+            }
+
+            @Override
+            public SyncClient.Record toRecord() throws JSONException {
+                JSONObject fields = new JSONObject();
+                fields.put("commandId", commandId);
+                fields.put("status", status);
+                if (result != null) {
+                    fields.put("result", result);
+                }
+                return new SyncClient.Record("commandAck", fields);
+            }
+
+            @Override
+            public boolean onSynced(SyncClient.Record record) {
+                return acknowledged(commandId, record.status);
+            }
+        };
+    }
+
+    private boolean acknowledged(String commandId, int code) {
+        if (code != HTTP_OK) {
+            Log.w(TAG, "Acknowledge of " + commandId + " failed: HTTP " + code);
+            return false;
+        }
+        synchronized (lock) {
+            dispatched.remove(commandId);
+        }
+        return true;
+    }
+
+    synchronized String getStats() {
+        return "requests=" + requestCount + " notModified=" + notModifiedCount
+                + " commands=" + commandCount + " longPoll=" + longPollSupported;
+    }
+
+    private void loop() {
+        while (running) {
+            boolean longPoll;
+            WakeLeaseManager.Lease lease;
+            synchronized (lock) {
+                // Without long poll support, idle until nudged
+                while (running && !fetchRequested && !longPollSupported) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Re-check running
+                    }
+                }
+                fetchRequested = false;
+                longPoll = longPollSupported;
+                lease = fetchLease;
+                fetchLease = null;
+            }
+
+            // The nudge's lease is held until its commands are dispatched
+            boolean failed = false;
+            try {
+                if (!awaitEndpoint()) {
+                    break;
+                }
+                fetch(longPoll);
+                errorBackoff = MIN_ERROR_BACKOFF_MS;
+            } catch (IOException | JSONException e) {
+                failed = true;
+                // Jittered, so devices that lost the server together do not return together
+                errorBackoff = http.retryEngine().nextDelay(MIN_ERROR_BACKOFF_MS, MAX_ERROR_BACKOFF_MS,
+                        errorBackoff);
+                Log.w(TAG, "Command fetch failed, retrying in " + errorBackoff + " ms", e);
+            } finally {
+                if (lease != null) {
+                    lease.close();
+                }
+            }
+            retrying = failed;
+            if (failed) {
+                sleep(errorBackoff);
+            }
+        }
+    }
+
+    // Wait while the endpoint's breaker is open and, before a retry, until the
+    // retry budget allows one. Returns false once the channel is stopped.
+    private boolean awaitEndpoint() {
+        RetryEngine retryEngine = http.retryEngine();
+        while (running) {
+            long now = SystemClock.elapsedRealtime();
+            long until = Math.max(retryEngine.blockedUntil(ENDPOINT, now),
+                    retrying ? retryEngine.retryAvailableAt(now) : 0);
+            if (until == 0 && retryEngine.acquire(ENDPOINT, now)) {
+                if (retrying) {
+                    retryEngine.spendRetry(now);
+                }
+                return true;
+            }
+            sleep(Math.max(1, until - now));
+        }
+        return false;
+    }
+
+    private void fetch(boolean longPoll) throws IOException, JSONException {
+        String url = baseUrl + ENDPOINT + "/" + deviceId + "?status=pending";
+        if (longPoll) {
+            url += "&wait=" + LONG_POLL_WAIT_SECONDS;
+        }
+
+        Request.Builder request = http.request(url, authToken);
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        Call call = (longPoll ? longPollClient : http.client()).newCall(request.build());
+        currentCall = call;
+
+        Response response;
+        try {
+            response = http.execute(call, longPoll);
+        } catch (SocketTimeoutException e) {
+            if (!longPoll) {
+                throw e;
+            }
+            // A parked poll that outlived the server's wait; just poll again
+            return;
+        } finally {
+            currentCall = null;
+        }
+        try {
+            int code = response.code();
+            count(code);
+
+            // The server answered without parking the request: fall back to polling
+            if (longPoll && response.header("X-Long-Poll") == null) {
+                Log.d(TAG, "Server does not support long poll, using conditional polling");
+                synchronized (lock) {
+                    longPollSupported = false;
+                }
+            }
+
+            if (code == HTTP_NOT_MODIFIED) {
+                return;
+            }
+            if (code != HTTP_OK) {
+                throw new IOException("HTTP " + code);
+            }
+
+            String newEtag = response.header("ETag");
+            ResponseBody body = response.body();
+            JSONObject commands = new JSONObject(body != null ? body.string() : "{}");
+            dispatch(commands.optJSONArray("commands"));
+            etag = newEtag;
+        } finally {
+            response.close();
+        }
+    }
+
+    // Hand each new pending command to the listener once
+    private void dispatch(JSONArray commands) {
+        if (commands == null) {
+            return;
+        }
+        for (int i = 0; i < commands.length(); i++) {
+            JSONObject command = commands.optJSONObject(i);
+            if (command == null) {
+                continue;
+            }
+            String id = command.optString("id");
+            boolean isNew;
+            synchronized (lock) {
+                isNew = dispatched.add(id);
+            }
+            if (isNew) {
+                synchronized (this) {
+                    commandCount++;
+                }
+                listener.onCommand(command);
+            }
+        }
+    }
+
+    private synchronized void count(int code) {
+        requestCount++;
+        if (code == HTTP_NOT_MODIFIED) {
+            notModifiedCount++;
+        }
+    }
+
+    private void sleep(long millis) {
+        synchronized (lock) {
+            try {
+                lock.wait(millis);
+            } catch (InterruptedException e) {
+                // Woken by stop()
+            }
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package com.sentrycircle;
 
+import android.Manifest;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.app.usage.UsageStatsManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.location.Location;
-import android.os.BatteryManager;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
 import android.os.Build;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
@@ -25,37 +30,245 @@ import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.tasks.OnSuccessListener;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class DeviceMonitoringService extends Service {
+    // Start action sent when a push message says new commands are waiting
+    public static final String ACTION_COMMAND_PUSH = "com.sentrycircle.action.COMMAND_PUSH";
+    
+    // Start action sent when the child raises an SOS
+    public static final String ACTION_SOS = "com.sentrycircle.action.SOS";
+    
+    // Start action of the wakeup scheduler's alarm before API 24
+    private static final String ACTION_WAKEUP = "com.sentrycircle.action.WAKEUP";
+    
+    // Shared preferences written by the app with the device's backend credentials
+    public static final String PREFS_NAME = "SentryCircleMonitoring";
+    public static final String PREF_API_BASE_URL = "apiBaseUrl";
+    public static final String PREF_DEVICE_ID = "deviceId";
+    public static final String PREF_AUTH_TOKEN = "authToken";
+    
+    // Command that replaces the device's geofence set
+    public static final String COMMAND_SET_GEOFENCES = "SET_GEOFENCES";
+    
+    // Command asking the device to report where it is right now
+    public static final String COMMAND_CHECK_IN = "CHECK_IN";
+    
     private static final String TAG = "DeviceMonitoringService";
     private static final String CHANNEL_ID = "SentryCircleMonitoring";
     private static final int NOTIFICATION_ID = 1001;
-    private static final long LOCATION_UPDATE_INTERVAL = 15 * 60 * 1000; // 15 minutes
     private static final long USAGE_UPDATE_INTERVAL = 30 * 60 * 1000; // 30 minutes
     private static final long HEARTBEAT_INTERVAL = 5 * 60 * 1000; // 5 minutes
+    private static final int USAGE_EXPECTED_PACKAGES = 128;
+    private static final long USAGE_UPDATE_FLEX = 10 * 60 * 1000; // 10 minutes
+    private static final long HEARTBEAT_FLEX = 2 * 60 * 1000; // 2 minutes
+    private static final long LOCATION_FLUSH_FLEX = 15 * 60 * 1000; // 15 minutes
+    private static final long LOCATION_BURST_LEASE_TIMEOUT = 10 * 1000; // 10 seconds
+    private static final long FLUSH_LEASE_TIMEOUT = 60 * 1000; // 1 minute
+    private static final long USAGE_LEASE_TIMEOUT = 30 * 1000; // 30 seconds
+    private static final long COMMAND_LEASE_TIMEOUT = 30 * 1000; // 30 seconds
+    private static final long COMMAND_FETCH_LEASE_TIMEOUT = 60 * 1000; // 1 minute
+    private static final long COMMAND_POLL_INTERVAL = 15 * 60 * 1000; // 15 minutes
+    private static final long COMMAND_POLL_FLEX = 5 * 60 * 1000; // 5 minutes
+    private static final int LOCATION_BATCH_SIZE = 20;
+    // Largest batch sent when the write budget is short (the worker keeps the last 100 fixes)
+    private static final int LOCATION_COALESCED_BATCH_SIZE = 100;
+    private static final long LOCATION_BATCH_MAX_AGE = 60 * 60 * 1000; // 1 hour
+    private static final int LOCATION_OUTBOX_CAPACITY = 5000;
+    private static final boolean BATCHED_LOCATION_DELIVERY = true;
+    private static final double TRAJECTORY_ERROR_METERS = 25;
+    private static final long TRAJECTORY_MAX_VERTEX_INTERVAL = 30 * 60 * 1000; // 30 minutes
+    // Transitions are found when a batch is delivered, so zones bound the batching delay
+    private static final long GEOFENCE_MAX_WAIT = 5 * 60 * 1000; // 5 minutes
+    private static final String PREF_GEOFENCES = "geofences";
+    private static final String PREF_GEOFENCES_INSIDE = "geofencesInside";
+    private static final String PREF_KNOWN_PLACES = "knownPlaces";
+    private static final String PREF_WRITE_BUDGET = "writeBudget";
+    private static final long WIFI_CHECK_INTERVAL = 5 * 60 * 1000; // 5 minutes
+    private static final long WIFI_CHECK_FLEX = 2 * 60 * 1000; // 2 minutes
+    private static final long WIFI_SCAN_MAX_AGE = 10 * 60 * 1000; // 10 minutes
+    // Longest stay at a known place without a Wi-Fi scan confirming it
+    private static final long PLACE_UNCONFIRMED_MAX = 60 * 60 * 1000; // 1 hour
+    private static final float PLACE_LEARN_MAX_ACCURACY = 50;
+    private static final float PLACE_REPORT_ACCURACY = 50;
+    // Free storage is reported in steps of this size, so it rarely changes
+    private static final long STORAGE_REPORT_STEP_MB = 100;
+    // Held-back geofence transitions beyond this are summarised per zone
+    private static final int GEOFENCE_HELD_MAX = 10;
 
     private FusedLocationProviderClient fusedLocationClient;
     private LocationCallback locationCallback;
-    private PowerManager.WakeLock wakeLock;
-    private Timer heartbeatTimer;
-    private Handler handler;
-    private boolean isRunning = false;
+    private LocationOutbox locationOutbox;
+    private MotionSamplingEngine samplingEngine;
+    private KalmanLocationFilter locationFilter;
+    private TrajectorySimplifier trajectorySimplifier;
+    private GeofenceEngine geofenceEngine;
+    private KnownPlaceCache knownPlaces;
+    private WifiManager wifiManager;
+    private final long[] scanBssids = new long[KnownPlaceCache.MAX_BSSIDS_PER_PLACE];
+    private int scanBssidCount;
+    private long scanElapsedTime;
+    private KnownPlaceCache.Place currentPlace;
+    private long lastPlaceReport;
+    private long placeConfirmedAt;
+    private UsageAggregationStore usageStore;
+    private UsageIngester usageIngester;
+    private WakeLeaseManager wakeLeases;
+    private MonitoringThread monitoringThread;
+    private WakeupScheduler wakeupScheduler;
+    private UploadScheduler uploadScheduler;
+    private BulkUploadPolicy bulkUploadPolicy;
+    private BatteryMonitor batteryMonitor;
+    private PowerGovernor powerGovernor;
+    private CommandChannel commandChannel;
+    private MonitoringUploader uploader;
+    private SyncClient syncClient;
+    private WriteBudget writeBudget;
+    // Geofence transitions waiting for write budget; monitoring thread only
+    private final List<GeofenceEngine.Transition> heldTransitions = new ArrayList<>();
+    private final Runnable heldTransitionsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            submitGeofenceTransitions(Collections.<GeofenceEngine.Transition>emptyList());
+        }
+    };
+    private SharedPreferences preferences;
+    private String apiBaseUrl;
+    private String deviceId;
+    private String authToken;
+    private String appVersion;
+    private volatile boolean isRunning = false;
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "Service onCreate");
         
-        // Initialize handler on main thread
-        handler = new Handler(Looper.getMainLooper());
+        // Load the device's backend registration, if the app has completed it
+        preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        apiBaseUrl = preferences.getString(PREF_API_BASE_URL, null);
+        deviceId = preferences.getString(PREF_DEVICE_ID, null);
+        authToken = preferences.getString(PREF_AUTH_TOKEN, null);
+        if (isRegistered()) {
+            uploader = new MonitoringUploader(apiBaseUrl, deviceId, authToken);
+            syncClient = new SyncClient(apiBaseUrl, deviceId, authToken);
+        }
+        try {
+            appVersion = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Error reading app version", e);
+        }
+        
+        // All monitoring callbacks run on a dedicated background thread
+        monitoringThread = new MonitoringThread();
+        
+        // The CPU is only held awake while a unit of work runs
+        wakeLeases = new WakeLeaseManager(
+                (PowerManager) getSystemService(Context.POWER_SERVICE),
+                "SentryCircle:MonitoringWakeLock"
+        );
+        
+        // Periodic work is coalesced into shared wake windows
+        wakeupScheduler = new WakeupScheduler(
+                monitoringThread,
+                (AlarmManager) getSystemService(Context.ALARM_SERVICE),
+                wakeLeases,
+                PendingIntent.getService(this, 0,
+                        new Intent(this, DeviceMonitoringService.class).setAction(ACTION_WAKEUP),
+                        PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE)
+        );
+        
+        // Uploads are sent by priority: SOS and check-ins never wait behind bulk data,
+        // and bulk data waits for cheap network conditions
+        batteryMonitor = new BatteryMonitor(this);
+        bulkUploadPolicy = new BulkUploadPolicy(this, batteryMonitor);
+        
+        // Every cadence and the location accuracy follow the battery and thermal state
+        powerGovernor = new PowerGovernor((PowerManager) getSystemService(Context.POWER_SERVICE));
+        uploadScheduler = new UploadScheduler(wakeLeases, bulkUploadPolicy, syncClient);
+        
+        // Uploads that cost the worker KV writes are paced to the rates it announces.
+        // The bucket levels survive restarts, so a restart does not refill a burst.
+        writeBudget = MonitoringHttpClient.get().writeBudget();
+        String storedBudget = preferences.getString(PREF_WRITE_BUDGET, null);
+        if (storedBudget != null) {
+            writeBudget.restore(storedBudget, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+        }
+        
+        // Uploads due in the same wake window share one sync request
+        wakeupScheduler.setWindowListener(new WakeupScheduler.WindowListener() {
+            @Override
+            public void onWindowOpened() {
+                uploadScheduler.openWindow();
+            }
+            
+            @Override
+            public void onWindowClosed() {
+                uploadScheduler.closeWindow();
+            }
+        });
         
         // Initialize location client
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
         
+        // Location sampling adapts to whether the device is moving
+        samplingEngine = new MotionSamplingEngine(BATCHED_LOCATION_DELIVERY);
+        
+        // Fixes are smoothed and impossible jumps rejected before anything else sees them
+        locationFilter = new KalmanLocationFilter();
+        
+        // Only fixes that change the uploaded path beyond the error bound are kept
+        trajectorySimplifier = new TrajectorySimplifier(TRAJECTORY_ERROR_METERS, TRAJECTORY_MAX_VERTEX_INTERVAL);
+        
+        // Geofences synced from the guardians are evaluated on the device
+        geofenceEngine = new GeofenceEngine();
+        loadGeofences();
+        
+        // Places recognised by their Wi-Fi access points stand in for GPS fixes
+        wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        knownPlaces = new KnownPlaceCache();
+        String storedPlaces = preferences.getString(PREF_KNOWN_PLACES, null);
+        if (storedPlaces != null) {
+            try {
+                knownPlaces.loadJson(new JSONArray(storedPlaces));
+            } catch (JSONException e) {
+                Log.e(TAG, "Error loading known places", e);
+            }
+        }
+        
+        // Open the location outbox, recovering fixes left by a previous run
+        locationOutbox = new LocationOutbox(
+                new File(getFilesDir(), "location_outbox.journal"),
+                LOCATION_OUTBOX_CAPACITY
+        );
+        try {
+            locationOutbox.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening location outbox", e);
+        }
+        
+        // Usage events are ingested incrementally from a persisted cursor
+        // into primitive per-app totals
+        usageStore = new UsageAggregationStore(USAGE_EXPECTED_PACKAGES);
+        usageIngester = new UsageIngester(
+                (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE),
+                preferences,
+                usageStore
+        );
+        
         // Create location callback
         locationCallback = new LocationCallback() {
             @Override
@@ -63,10 +276,8 @@ public class DeviceMonitoringService extends Service {
                 if (locationResult == null) {
                     return;
                 }
-                for (Location location : locationResult.getLocations()) {
-                    // Process location update
-                    processLocationUpdate(location);
-                }
+                // Process the whole burst in one pass
+                processLocationUpdates(locationResult.getLocations());
             }
         };
         
@@ -78,7 +289,21 @@ public class DeviceMonitoringService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Service onStartCommand");
         
+        String action = intent != null ? intent.getAction() : null;
         if (isRunning) {
+            // A push told us commands are waiting: fetch them now
+            if (ACTION_COMMAND_PUSH.equals(action) && commandChannel != null) {
+                nudgeCommandChannel();
+                return START_STICKY;
+            }
+            if (ACTION_SOS.equals(action)) {
+                sendSos();
+                return START_STICKY;
+            }
+            if (ACTION_WAKEUP.equals(action)) {
+                wakeupScheduler.onWakeAlarm();
+                return START_STICKY;
+            }
             Log.d(TAG, "Service already running");
             return START_STICKY;
         }
@@ -86,17 +311,72 @@ public class DeviceMonitoringService extends Service {
         // Start foreground service with notification
         startForeground(NOTIFICATION_ID, createNotification());
         
-        // Acquire wake lock to keep CPU running
-        acquireWakeLock();
+        // Monitoring backs off as the battery drains or the device heats up
+        powerGovernor.start(monitoringThread.getHandler(), new PowerGovernor.Listener() {
+            @Override
+            public void onProfileChanged(PowerGovernor.Profile profile) {
+                applyPowerProfile(profile);
+            }
+        });
+        
+        // Battery state is kept current from broadcasts; plugging in, unplugging
+        // and running low are reported to the guardians straight away
+        batteryMonitor.start(monitoringThread.getHandler(), new BatteryMonitor.Listener() {
+            @Override
+            public void onBatteryChanged(BatteryMonitor.Snapshot snapshot) {
+                powerGovernor.onBattery(snapshot);
+            }
+            
+            @Override
+            public void onBatteryEvent(BatteryMonitor.Event event, BatteryMonitor.Snapshot snapshot) {
+                Log.d(TAG, "Battery " + event + " at " + snapshot.level + "%");
+                wakeupScheduler.runNow("heartbeat");
+                if (event == BatteryMonitor.Event.PLUGGED) {
+                    flushHeldBackUploads();
+                }
+            }
+        });
+        
+        // Send held-back data as soon as uploading becomes cheap, and retry at once
+        // when the device comes back online
+        bulkUploadPolicy.start(monitoringThread.getHandler(), new BulkUploadPolicy.Listener() {
+            @Override
+            public void onConditionsImproved() {
+                flushHeldBackUploads();
+            }
+            
+            @Override
+            public void onConnectivityRestored() {
+                // Failures while offline say nothing about the server: retry now
+                uploadScheduler.onConnectivityRestored();
+                if (commandChannel != null) {
+                    nudgeCommandChannel();
+                }
+                flushHeldBackUploads();
+            }
+        });
         
-        // Start monitoring
+        // Start monitoring. The heartbeat goes first so that in a shared wake
+        // window its status is held for the location flush and rides along.
+        startHeartbeat();
         startLocationTracking();
         startUsageTracking();
         startCommandListener();
-        startHeartbeat();
         
         isRunning = true;
         
+        // Profile changes are applied on the monitoring thread, starting with the current one
+        monitoringThread.post(new Runnable() {
+            @Override
+            public void run() {
+                applyPowerProfile(powerGovernor.getProfile());
+            }
+        });
+        
+        if (ACTION_SOS.equals(action)) {
+            sendSos();
+        }
+        
         // Return sticky so service restarts if killed
         return START_STICKY;
     }
@@ -107,10 +387,41 @@ public class DeviceMonitoringService extends Service {
         
         // Stop all monitoring
         stopLocationTracking();
+        stopCommandListener();
         stopHeartbeat();
+        Log.d(TAG, "Wakeup scheduler: " + wakeupScheduler.getStats());
+        wakeupScheduler.cancelAll();
         
-        // Release wake lock
-        releaseWakeLock();
+        // Try to deliver whatever is still queued, then stop the monitoring thread.
+        // The upload components are stopped behind the flush, which still needs them.
+        monitoringThread.post(new Runnable() {
+            @Override
+            public void run() {
+                flushLocationOutbox();
+                Log.d(TAG, "Upload lanes: " + uploadScheduler.getStats());
+                Log.d(TAG, "Bulk upload policy: " + bulkUploadPolicy.getStats());
+                bulkUploadPolicy.stop();
+                uploadScheduler.stop();
+                // Dropped uploads refunded their tokens
+                saveWriteBudget();
+            }
+        });
+        monitoringThread.quit();
+        Log.d(TAG, "Battery: " + batteryMonitor.getStats());
+        Log.d(TAG, "Power governor: " + powerGovernor.getStats());
+        batteryMonitor.stop();
+        powerGovernor.stop();
+        Log.d(TAG, "Location filter: " + locationFilter.getStats());
+        Log.d(TAG, "Trajectory: " + trajectorySimplifier.getStats());
+        Log.d(TAG, "Geofences: " + geofenceEngine.getStats());
+        Log.d(TAG, "Known places: " + knownPlaces.getStats());
+        Log.d(TAG, "Wake leases: " + wakeLeases.getStats());
+        if (uploader != null) {
+            Log.d(TAG, "Uploader: " + uploader.getStats());
+        }
+        Log.d(TAG, "HTTP client: " + MonitoringHttpClient.get().getStats());
+        Log.d(TAG, "Retry engine: " + MonitoringHttpClient.get().retryEngine().getStats());
+        Log.d(TAG, "Write budget: " + writeBudget.getStats());
         
         isRunning = false;
         
@@ -127,25 +438,34 @@ public class DeviceMonitoringService extends Service {
     private void startLocationTracking() {
         Log.d(TAG, "Starting location tracking");
         
+        // Flush stale fixes even when no full batch builds up
+        wakeupScheduler.schedule("location-flush", LOCATION_BATCH_MAX_AGE, LOCATION_FLUSH_FLEX,
+                LOCATION_BATCH_MAX_AGE, new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLocationOutbox();
+                    }
+                });
+        
+        // Check whether the device is at a known place, in step with other periodic work
+        wakeupScheduler.schedule("wifi-check", WIFI_CHECK_INTERVAL, WIFI_CHECK_FLEX,
+                WIFI_CHECK_INTERVAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        checkKnownPlace();
+                    }
+                });
+        
         try {
-            LocationRequest locationRequest = LocationRequest.create()
-                    .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
-                    .setInterval(LOCATION_UPDATE_INTERVAL)
-                    .setFastestInterval(LOCATION_UPDATE_INTERVAL / 2);
-            
-            fusedLocationClient.requestLocationUpdates(
-                    locationRequest,
-                    locationCallback,
-                    Looper.getMainLooper()
-            );
+            requestLocationUpdates();
             
             // Get last known location immediately
             fusedLocationClient.getLastLocation()
-                    .addOnSuccessListener(new OnSuccessListener<Location>() {
+                    .addOnSuccessListener(monitoringThread, new OnSuccessListener<Location>() {
                         @Override
                         public void onSuccess(Location location) {
                             if (location != null) {
-                                processLocationUpdate(location);
+                                processLocationUpdates(Collections.singletonList(location));
                             }
                         }
                     });
@@ -154,116 +474,746 @@ public class DeviceMonitoringService extends Service {
         }
     }
 
+    // Issue the location request for the current motion state.
+    // Re-requesting with the same callback replaces the previous request.
+    private void requestLocationUpdates() throws SecurityException {
+        LocationRequest locationRequest = samplingEngine.createLocationRequest();
+        
+        fusedLocationClient.requestLocationUpdates(
+                locationRequest,
+                locationCallback,
+                monitoringThread.getLooper()
+        );
+    }
+
     // Stop location tracking
     private void stopLocationTracking() {
         Log.d(TAG, "Stopping location tracking");
         fusedLocationClient.removeLocationUpdates(locationCallback);
+        wakeupScheduler.cancel("location-flush");
+        wakeupScheduler.cancel("wifi-check");
+        currentPlace = null;
     }
 
-    // Process location update
-    private void processLocationUpdate(Location location) {
-        Log.d(TAG, "Location update: " + location.getLatitude() + ", " + location.getLongitude());
+    // Process a burst of location updates: one journal append, one request
+    // update and one upload decision however many fixes were delivered
+    private void processLocationUpdates(List<Location> locations) {
+        if (locations.isEmpty()) {
+            return;
+        }
+        try (WakeLeaseManager.Lease lease = wakeLeases.acquire("location-burst", LOCATION_BURST_LEASE_TIMEOUT)) {
+            processLocationBurst(locations);
+        }
+    }
+
+    private void processLocationBurst(List<Location> locations) {
+        Location latest = locations.get(locations.size() - 1);
+        Log.d(TAG, "Location update: " + locations.size() + " fixes, latest "
+                + latest.getLatitude() + ", " + latest.getLongitude());
+        
+        boolean motionChanged = false;
+        List<LocationOutbox.Fix> fixes = new ArrayList<>();
+        List<GeofenceEngine.Transition> transitions = new ArrayList<>(0);
+        for (Location location : locations) {
+            if (!locationFilter.update(location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), location.getTime())) {
+                Log.d(TAG, "Rejected outlier fix with accuracy " + location.getAccuracy());
+                continue;
+            }
+            
+            double latitude = locationFilter.getLatitude();
+            double longitude = locationFilter.getLongitude();
+            trajectorySimplifier.add(latitude, longitude, locationFilter.getAccuracy(), location.getTime(), fixes);
+            geofenceEngine.evaluate(latitude, longitude, locationFilter.getAccuracy(), location.getTime(), transitions);
+            
+            // Prefer the provider's speed; otherwise use the filter's smoothed estimate
+            float speed = location.hasSpeed() ? location.getSpeed() : locationFilter.getSpeed();
+            motionChanged |= samplingEngine.onFix(latitude, longitude, location.getTime(), true, speed);
+        }
+        
+        // Remember the access points visible wherever the device settles
+        if (samplingEngine.getState() == MotionSamplingEngine.MotionState.STATIONARY
+                && locationFilter.getAccuracy() <= PLACE_LEARN_MAX_ACCURACY
+                && scanBssidCount > 0
+                && SystemClock.elapsedRealtime() - scanElapsedTime <= WIFI_SCAN_MAX_AGE) {
+            knownPlaces.learn(locationFilter.getLatitude(), locationFilter.getLongitude(),
+                    scanBssids, scanBssidCount, System.currentTimeMillis());
+            saveKnownPlaces();
+        }
+        
+        // Geofence transitions go out right away; plain fixes wait for a batch
+        if (!transitions.isEmpty()) {
+            saveGeofenceState();
+            submitGeofenceTransitions(transitions);
+        }
         
-        // In a real implementation, this would send the location to Firebase
-        // For this example, we'll just log it
+        // Journal the trajectory vertices so they survive a crash or service restart
+        try {
+            locationOutbox.appendAll(fixes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending locations to outbox", e);
+            return;
+        }
         
-        // Create location data
-        Map<String, Object> locationData = new HashMap<>();
-        locationData.put("latitude", location.getLatitude());
-        locationData.put("longitude", location.getLongitude());
-        locationData.put("accuracy", location.getAccuracy());
-        locationData.put("timestamp", location.getTime());
+        // Re-issue the location request only when the motion state changes
+        if (motionChanged) {
+            Log.d(TAG, "Motion state changed to " + samplingEngine.getState());
+            try {
+                requestLocationUpdates();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Error updating location request", e);
+            }
+        }
         
-        // TODO: Send location to Firebase
+        // Upload once a full batch has built up; other periodic work due soon
+        // rides along in the same wake window. While the bulk policy holds
+        // locations back the flush would be refused, so the batch waits for
+        // the policy's conditions-improved callback instead.
+        if (locationOutbox.pendingCount() >= LOCATION_BATCH_SIZE
+                && !bulkUploadPolicy.isDeferring(UploadScheduler.Lane.NORMAL, locationOutbox.oldestPendingTime())) {
+            wakeupScheduler.runNow("location-flush");
+        }
     }
 
-    // Start usage tracking
-    private void startUsageTracking() {
-        Log.d(TAG, "Starting usage tracking");
+    // Park the fused provider while a Wi-Fi scan places the device at a
+    // known place, and promote back to fixes as soon as the scan stops matching
+    private void checkKnownPlace() {
+        readWifiScan();
+        long now = System.currentTimeMillis();
+        if (scanBssidCount == 0) {
+            // No fresh scan (throttled, or Wi-Fi idle in Doze) says nothing
+            // about movement, so keep the current place. Only after a long
+            // stretch without one are fixes resumed to confirm it, at the
+            // current cadence.
+            if (currentPlace != null && now - placeConfirmedAt >= PLACE_UNCONFIRMED_MAX) {
+                Log.d(TAG, "No Wi-Fi scan confirms place " + currentPlace.id + ", resuming location updates");
+                currentPlace = null;
+                try {
+                    requestLocationUpdates();
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Error resuming location updates", e);
+                }
+            }
+            return;
+        }
+        KnownPlaceCache.Place place = knownPlaces.match(scanBssids, scanBssidCount, now);
         
-        // Schedule periodic usage data collection
-        handler.postDelayed(new Runnable() {
+        if (currentPlace == null) {
+            if (place != null && samplingEngine.getState() != MotionSamplingEngine.MotionState.IN_VEHICLE) {
+                Log.d(TAG, "At known place " + place.id + ", pausing location updates");
+                fusedLocationClient.removeLocationUpdates(locationCallback);
+                currentPlace = place;
+                placeConfirmedAt = now;
+                reportPlace(place);
+            }
+        } else if (place == null || place.id != currentPlace.id) {
+            Log.d(TAG, "Left known place " + currentPlace.id + ", resuming location updates");
+            currentPlace = null;
+            // The surroundings changed, so assume movement until fixes say otherwise
+            samplingEngine.assume(MotionSamplingEngine.MotionState.WALKING);
+            try {
+                requestLocationUpdates();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Error resuming location updates", e);
+            }
+        } else {
+            placeConfirmedAt = now;
+            if (now - lastPlaceReport >= TRAJECTORY_MAX_VERTEX_INTERVAL) {
+                // Keep the server's position as fresh as a stationary trajectory would
+                reportPlace(place);
+            }
+        }
+    }
+
+    // Queue the place's position as the device's location
+    private void reportPlace(KnownPlaceCache.Place place) {
+        long now = System.currentTimeMillis();
+        lastPlaceReport = now;
+        List<LocationOutbox.Fix> fixes = new ArrayList<>(2);
+        trajectorySimplifier.drain(fixes);
+        fixes.add(new LocationOutbox.Fix(place.latitude, place.longitude, PLACE_REPORT_ACCURACY, now));
+        saveKnownPlaces();
+        
+        List<GeofenceEngine.Transition> transitions = new ArrayList<>(0);
+        geofenceEngine.evaluate(place.latitude, place.longitude, PLACE_REPORT_ACCURACY, now, transitions);
+        if (!transitions.isEmpty()) {
+            saveGeofenceState();
+            submitGeofenceTransitions(transitions);
+        }
+        
+        try {
+            locationOutbox.appendAll(fixes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending place to outbox", e);
+        }
+    }
+
+    // Keep the strongest BSSIDs of the latest system scan, if it is recent,
+    // and ask for a fresh scan for the next check
+    private void readWifiScan() {
+        scanBssidCount = 0;
+        if (wifiManager == null) {
+            return;
+        }
+        try {
+            List<ScanResult> results = wifiManager.getScanResults();
+            if (results != null) {
+                List<ScanResult> recent = new ArrayList<>(results.size());
+                long oldest = (SystemClock.elapsedRealtime() - WIFI_SCAN_MAX_AGE) * 1000;
+                for (ScanResult result : results) {
+                    if (result.timestamp >= oldest) {
+                        recent.add(result);
+                    }
+                }
+                Collections.sort(recent, new Comparator<ScanResult>() {
+                    @Override
+                    public int compare(ScanResult a, ScanResult b) {
+                        return Integer.compare(b.level, a.level);
+                    }
+                });
+                for (ScanResult result : recent) {
+                    long bssid = KnownPlaceCache.parseBssid(result.BSSID);
+                    if (bssid >= 0 && scanBssidCount < scanBssids.length) {
+                        scanBssids[scanBssidCount++] = bssid;
+                    }
+                }
+                scanElapsedTime = SystemClock.elapsedRealtime();
+            }
+            wifiManager.startScan();
+        } catch (SecurityException e) {
+            Log.w(TAG, "Wi-Fi scan results unavailable", e);
+        }
+    }
+
+    private void saveKnownPlaces() {
+        try {
+            preferences.edit().putString(PREF_KNOWN_PLACES, knownPlaces.toJson().toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error saving known places", e);
+        }
+    }
+
+    // Send geofence transitions on the high-priority lane. Over the write
+    // budget they are held back and go out together once a write frees up.
+    private void submitGeofenceTransitions(List<GeofenceEngine.Transition> transitions) {
+        if (uploader == null) {
+            return;
+        }
+        heldTransitions.addAll(transitions);
+        if (heldTransitions.isEmpty()) {
+            return;
+        }
+        
+        long now = SystemClock.elapsedRealtime();
+        long availableAt = writeBudget.availableAt(WriteBudget.RecordClass.GEOFENCE, now);
+        if (availableAt != 0) {
+            if (heldTransitions.size() > GEOFENCE_HELD_MAX) {
+                summarizeHeldTransitions();
+            }
+            Log.d(TAG, "Geofence write budget spent, holding " + heldTransitions.size() + " transitions");
+            monitoringThread.removeCallbacks(heldTransitionsRunnable);
+            if (availableAt != Long.MAX_VALUE) {
+                monitoringThread.postDelayed(heldTransitionsRunnable, availableAt - now);
+            }
+            return;
+        }
+        
+        writeBudget.tryAcquire(WriteBudget.RecordClass.GEOFENCE, now);
+        saveWriteBudget();
+        List<GeofenceEngine.Transition> sending = new ArrayList<>(heldTransitions);
+        heldTransitions.clear();
+        monitoringThread.removeCallbacks(heldTransitionsRunnable);
+        Log.d(TAG, "Sending " + sending.size() + " geofence transitions");
+        uploadScheduler.submit(UploadScheduler.Lane.HIGH, "geofence",
+                budgeted(WriteBudget.RecordClass.GEOFENCE, uploader.geofenceUpload(sending)));
+    }
+
+    // The upload, giving back the write budget token spent on it if the
+    // scheduler drops it without the server accepting it
+    private UploadScheduler.SyncUpload budgeted(final WriteBudget.RecordClass recordClass,
+            final UploadScheduler.SyncUpload upload) {
+        return new UploadScheduler.BudgetedUpload() {
+            @Override
+            public boolean send() {
+                return upload.send();
+            }
+            
+            @Override
+            public String endpoint() {
+                return upload.endpoint();
+            }
+            
+            @Override
+            public SyncClient.Record toRecord() throws JSONException {
+                return upload.toRecord();
+            }
+            
+            @Override
+            public boolean onSynced(SyncClient.Record record) {
+                return upload.onSynced(record);
+            }
+            
+            @Override
+            public void refund() {
+                writeBudget.refund(recordClass);
+                saveWriteBudget();
+            }
+        };
+    }
+
+    // Persist the write budget's bucket levels; safe from any thread
+    private void saveWriteBudget() {
+        preferences.edit().putString(PREF_WRITE_BUDGET,
+                writeBudget.save(SystemClock.elapsedRealtime(), System.currentTimeMillis())).apply();
+    }
+
+    // Too many transitions held back (e.g. hovering at a zone edge): keep
+    // only the latest of each zone, which is where the child is now
+    private void summarizeHeldTransitions() {
+        Map<String, GeofenceEngine.Transition> latest = new LinkedHashMap<>();
+        for (GeofenceEngine.Transition transition : heldTransitions) {
+            latest.remove(transition.zoneId);
+            latest.put(transition.zoneId, transition);
+        }
+        writeBudget.recordSummarised(WriteBudget.RecordClass.GEOFENCE, heldTransitions.size() - latest.size());
+        heldTransitions.clear();
+        heldTransitions.addAll(latest.values());
+    }
+
+    // Raise an SOS with the best position we have, on the critical lane
+    private void sendSos() {
+        Log.d(TAG, "Sending SOS");
+        
+        // The filter is only read on the monitoring thread
+        monitoringThread.post(new Runnable() {
             @Override
             public void run() {
-                collectUsageData();
+                if (uploader == null) {
+                    Log.w(TAG, "Device not registered, SOS not sent");
+                    return;
+                }
+                // Without any fix yet the SOS still goes out, just without a position
+                boolean hasFix = locationFilter.getTime() != 0;
+                double latitude = hasFix ? locationFilter.getLatitude() : Double.NaN;
+                double longitude = hasFix ? locationFilter.getLongitude() : Double.NaN;
+                float accuracy = locationFilter.getAccuracy();
+                long time = hasFix ? locationFilter.getTime() : System.currentTimeMillis();
+                uploadScheduler.submit(UploadScheduler.Lane.CRITICAL, "sos",
+                        uploader.sosUpload(latitude, longitude, accuracy, time));
+            }
+        });
+    }
+
+    // Upload queued fixes in batches, removing each batch once delivered
+    private void flushLocationOutbox() {
+        if (uploader == null) {
+            // Not registered yet: keep the fixes queued
+            return;
+        }
+        try (WakeLeaseManager.Lease lease = wakeLeases.acquire("location-flush", FLUSH_LEASE_TIMEOUT)) {
+            // Ask before touching the simplifier: a refused flush must not force a vertex
+            long oldest = locationOutbox.pendingCount() > 0
+                    ? locationOutbox.oldestPendingTime() : System.currentTimeMillis();
+            if (!uploadScheduler.admitDeferrable(UploadScheduler.Lane.NORMAL, "locations",
+                    oldest, estimateOutboxBytes())) {
+                return;
+            }
+            
+            // Include the latest position the simplifier is still holding back
+            List<LocationOutbox.Fix> latest = new ArrayList<>(1);
+            trajectorySimplifier.drain(latest);
+            locationOutbox.appendAll(latest);
+            
+            while (locationOutbox.pendingCount() > 0) {
+                // Stand aside between batches if something urgent came up
+                if (uploadScheduler.hasUrgentPending()) {
+                    return;
+                }
+                
+                // A batch costs the worker the same writes whatever its size. Without
+                // the write budget for the backlog in normal batches, send fewer, larger
+                // ones; without any, the fixes wait and coalesce into a later batch.
+                long now = SystemClock.elapsedRealtime();
+                long batches = (locationOutbox.pendingCount() + LOCATION_BATCH_SIZE - 1) / LOCATION_BATCH_SIZE;
+                int batchSize = writeBudget.tokens(WriteBudget.RecordClass.LOCATION, now) >= batches
+                        ? LOCATION_BATCH_SIZE : LOCATION_COALESCED_BATCH_SIZE;
+                if (!writeBudget.tryAcquire(WriteBudget.RecordClass.LOCATION, now)) {
+                    Log.d(TAG, "Location write budget spent, fixes wait for a later batch");
+                    return;
+                }
+                List<LocationOutbox.Fix> fixes = locationOutbox.peek(batchSize);
                 
-                // Schedule next collection
-                if (isRunning) {
-                    handler.postDelayed(this, USAGE_UPDATE_INTERVAL);
+                // Urgent uploads held for this wake window share the batch's request
+                Log.d(TAG, "Sending location batch of " + fixes.size());
+                if (!uploadScheduler.sendDeferrable(UploadScheduler.Lane.NORMAL, fixes.get(0).time,
+                        uploader.locationsUpload(fixes))) {
+                    // Keep the fixes queued for the next flush
+                    writeBudget.refund(WriteBudget.RecordClass.LOCATION);
+                    return;
                 }
+                locationOutbox.acknowledge(fixes.size());
             }
-        }, USAGE_UPDATE_INTERVAL);
+        } catch (IOException e) {
+            Log.e(TAG, "Error flushing location outbox", e);
+        } finally {
+            saveWriteBudget();
+        }
+    }
+
+    // Estimate the wire size of everything in the outbox from its first batch
+    private long estimateOutboxBytes() throws IOException {
+        long pending = locationOutbox.pendingCount();
+        if (pending == 0) {
+            return 0;
+        }
+        List<LocationOutbox.Fix> sample = locationOutbox.peek(LOCATION_BATCH_SIZE);
+        MonitoringWireFormat.Writer writer = new MonitoringWireFormat.Writer(deviceId);
+        for (LocationOutbox.Fix fix : sample) {
+            writer.location(fix.latitude, fix.longitude, fix.accuracy, fix.time);
+        }
+        return writer.size() * pending / sample.size();
+    }
+
+    // Start usage tracking
+    private void startUsageTracking() {
+        Log.d(TAG, "Starting usage tracking");
+        
+        // Schedule periodic usage data collection
+        wakeupScheduler.schedule("usage", USAGE_UPDATE_INTERVAL, USAGE_UPDATE_FLEX,
+                USAGE_UPDATE_INTERVAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        collectUsageData();
+                    }
+                });
+    }
+
+    // Whether the app has stored the device's backend credentials
+    private boolean isRegistered() {
+        return apiBaseUrl != null && deviceId != null && authToken != null;
     }
 
     // Collect usage data
     private void collectUsageData() {
         Log.d(TAG, "Collecting usage data");
         
-        // In a real implementation, this would collect app usage statistics
-        // For this example, we'll just log it
+        try (WakeLeaseManager.Lease lease = wakeLeases.acquire("usage-scan", USAGE_LEASE_TIMEOUT)) {
+            scanUsageData();
+        }
+    }
+
+    // Scan usage statistics
+    private void scanUsageData() {
+        // Only events recorded since the last scan are read
+        usageIngester.ingest(System.currentTimeMillis());
+        
+        UsageAggregationStore.Snapshot snapshot = usageStore.snapshot();
+        if (snapshot.isEmpty() || uploader == null) {
+            // Nothing new, or not registered yet: keep the totals and the cursor
+            return;
+        }
         
-        // TODO: Collect and send usage data to Firebase
+        // Advance the persisted cursor only once the server accepted the totals.
+        // The snapshot reads the store in place; the upload runs inline, before
+        // anything else touches the store.
+        long bytes = new MonitoringWireFormat.Writer(deviceId).usage(snapshot).size();
+        if (!uploadScheduler.admitDeferrable(UploadScheduler.Lane.BULK, "usage", snapshot.firstBucketStart(), bytes)) {
+            return;
+        }
+        if (!writeBudget.tryAcquire(WriteBudget.RecordClass.USAGE, SystemClock.elapsedRealtime())) {
+            // The totals stay in the store and go out with a later scan
+            Log.d(TAG, "Usage write budget spent, totals wait for a later scan");
+            return;
+        }
+        boolean sent = uploadScheduler.sendDeferrable(UploadScheduler.Lane.BULK, snapshot.firstBucketStart(),
+                uploader.usageUpload(snapshot));
+        if (sent) {
+            usageIngester.commit();
+        } else {
+            writeBudget.refund(WriteBudget.RecordClass.USAGE);
+        }
+        saveWriteBudget();
     }
 
     // Start command listener
     private void startCommandListener() {
         Log.d(TAG, "Starting command listener");
         
-        // In a real implementation, this would listen for Firebase messages
-        // For this example, we'll just log it
+        if (!isRegistered()) {
+            Log.w(TAG, "Device not registered, command listener not started");
+            return;
+        }
         
-        // TODO: Set up Firebase message listener
+        commandChannel = new CommandChannel(apiBaseUrl, deviceId, authToken, new CommandChannel.Listener() {
+            @Override
+            public void onCommand(JSONObject command) {
+                executeCommand(command);
+            }
+        });
+        commandChannel.start();
+        
+        // Conditional polls only matter when the server cannot park a long poll
+        // and no push arrives; a 304 costs a single tiny exchange
+        wakeupScheduler.schedule("command-poll", COMMAND_POLL_INTERVAL, COMMAND_POLL_FLEX,
+                COMMAND_POLL_INTERVAL, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!commandChannel.isLongPolling()) {
+                            nudgeCommandChannel();
+                        }
+                    }
+                });
+    }
+
+    // Fetch commands now. The fetch runs on the channel's thread, so it gets
+    // a lease of its own that outlives the caller's (e.g. the wake window's).
+    private void nudgeCommandChannel() {
+        commandChannel.nudge(wakeLeases.acquire("command-fetch", COMMAND_FETCH_LEASE_TIMEOUT));
+    }
+
+    // Stop command listener
+    private void stopCommandListener() {
+        if (commandChannel != null) {
+            Log.d(TAG, "Command channel: " + commandChannel.getStats());
+            wakeupScheduler.cancel("command-poll");
+            commandChannel.stop();
+            commandChannel = null;
+        }
+    }
+
+    // Execute a command received from a guardian
+    private void executeCommand(JSONObject command) {
+        String commandId = command.optString("id");
+        String type = command.optString("type");
+        Log.d(TAG, "Executing command " + commandId + " (" + type + ")");
+        
+        try (WakeLeaseManager.Lease lease = wakeLeases.acquire("command", COMMAND_LEASE_TIMEOUT)) {
+            if (COMMAND_SET_GEOFENCES.equals(type)) {
+                JSONObject data = command.optJSONObject("data");
+                final JSONArray geofences = data != null ? data.optJSONArray("geofences") : null;
+                if (geofences == null) {
+                    acknowledgeCommand(UploadScheduler.Lane.HIGH, commandId, "failed", null);
+                    return;
+                }
+                // The engine is only touched on the monitoring thread
+                monitoringThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        preferences.edit().putString(PREF_GEOFENCES, geofences.toString()).apply();
+                        applyGeofences(geofences);
+                        saveGeofenceState();
+                        if (currentPlace == null) {
+                            // Re-issue the request with the new batching bound
+                            try {
+                                requestLocationUpdates();
+                            } catch (SecurityException e) {
+                                Log.e(TAG, "Error applying geofences to location updates", e);
+                            }
+                        }
+                    }
+                });
+            } else if (COMMAND_CHECK_IN.equals(type)) {
+                // A guardian is waiting on this answer: reply on the critical lane
+                checkIn(commandId);
+                return;
+            }
+            // TODO: Dispatch other commands to their handlers
+            
+            acknowledgeCommand(UploadScheduler.Lane.HIGH, commandId, "delivered", null);
+        }
+    }
+
+    // Answer a check-in with the current filtered position
+    private void checkIn(final String commandId) {
+        monitoringThread.post(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject result = new JSONObject();
+                try {
+                    if (locationFilter.getTime() != 0) {
+                        result.put("latitude", locationFilter.getLatitude());
+                        result.put("longitude", locationFilter.getLongitude());
+                        result.put("accuracy", locationFilter.getAccuracy());
+                        result.put("timestamp", locationFilter.getTime());
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error building check-in result", e);
+                }
+                acknowledgeCommand(UploadScheduler.Lane.CRITICAL, commandId, "completed", result);
+            }
+        });
+    }
+
+    // Report a command's status through the upload lanes
+    private void acknowledgeCommand(UploadScheduler.Lane lane, String commandId, String status,
+            JSONObject result) {
+        CommandChannel channel = commandChannel;
+        if (channel == null) {
+            return;
+        }
+        uploadScheduler.submit(lane, "command-ack", channel.acknowledgeUpload(commandId, status, result));
+    }
+
+    // Load the last synced geofences and which of them the device was inside
+    private void loadGeofences() {
+        String stored = preferences.getString(PREF_GEOFENCES, null);
+        if (stored == null) {
+            return;
+        }
+        try {
+            applyGeofences(new JSONArray(stored));
+        } catch (JSONException e) {
+            Log.e(TAG, "Error loading geofences", e);
+            return;
+        }
+        String inside = preferences.getString(PREF_GEOFENCES_INSIDE, "");
+        if (!inside.isEmpty()) {
+            geofenceEngine.restoreInside(Arrays.asList(inside.split("\n")));
+        }
+    }
+
+    // Replace the engine's zones with [{id, latitude, longitude, radius}]
+    private void applyGeofences(JSONArray geofences) {
+        List<String> ids = new ArrayList<>(geofences.length());
+        double[] latitudes = new double[geofences.length()];
+        double[] longitudes = new double[geofences.length()];
+        double[] radii = new double[geofences.length()];
+        for (int i = 0; i < geofences.length(); i++) {
+            JSONObject geofence = geofences.optJSONObject(i);
+            if (geofence == null || geofence.optString("id").isEmpty() || geofence.optDouble("radius", 0) <= 0) {
+                Log.w(TAG, "Skipping invalid geofence at " + i);
+                continue;
+            }
+            latitudes[ids.size()] = geofence.optDouble("latitude");
+            longitudes[ids.size()] = geofence.optDouble("longitude");
+            radii[ids.size()] = geofence.optDouble("radius");
+            ids.add(geofence.optString("id"));
+        }
+        geofenceEngine.setZones(ids, Arrays.copyOf(latitudes, ids.size()),
+                Arrays.copyOf(longitudes, ids.size()), Arrays.copyOf(radii, ids.size()));
+        samplingEngine.setMaxWaitCap(ids.isEmpty() ? 0 : GEOFENCE_MAX_WAIT);
+        Log.d(TAG, "Loaded " + geofenceEngine.getZoneCount() + " geofences");
+    }
+
+    // Persist which zones the device is inside so a restart does not re-report entries
+    private void saveGeofenceState() {
+        StringBuilder inside = new StringBuilder();
+        for (String id : geofenceEngine.getInsideZoneIds()) {
+            if (inside.length() > 0) {
+                inside.append('\n');
+            }
+            inside.append(id);
+        }
+        preferences.edit().putString(PREF_GEOFENCES_INSIDE, inside.toString()).apply();
     }
 
     // Start heartbeat to keep service alive
     private void startHeartbeat() {
         Log.d(TAG, "Starting heartbeat");
         
-        heartbeatTimer = new Timer();
-        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
+        wakeupScheduler.schedule("heartbeat", HEARTBEAT_INTERVAL, HEARTBEAT_FLEX, 0, new Runnable() {
             @Override
             public void run() {
                 sendHeartbeat();
             }
-        }, 0, HEARTBEAT_INTERVAL);
+        });
     }
 
     // Stop heartbeat
     private void stopHeartbeat() {
         Log.d(TAG, "Stopping heartbeat");
         
-        if (heartbeatTimer != null) {
-            heartbeatTimer.cancel();
-            heartbeatTimer = null;
-        }
+        wakeupScheduler.cancel("heartbeat");
     }
 
-    // Send heartbeat to Firebase
+    // Send the device status to the server
     private void sendHeartbeat() {
         Log.d(TAG, "Sending heartbeat");
         
-        // Get battery level
-        int batteryLevel = getBatteryLevel();
+        if (uploader == null) {
+            return;
+        }
+        
+        // Battery state comes from the last broadcast, no binder call needed
+        BatteryMonitor.Snapshot battery = batteryMonitor.get();
+        
+        Map<String, Object> status = collectStatus(battery);
+        
+        // Every upload carries the battery state: skip the heartbeat when one
+        // was accepted within the heartbeat interval and nothing else changed
+        long window = powerGovernor.getProfile().scale(HEARTBEAT_INTERVAL);
+        if (!uploader.needsHeartbeat(window, battery, status)) {
+            Log.d(TAG, "Heartbeat skipped, recent upload proved liveness");
+            return;
+        }
         
-        // Create status data
-        Map<String, Object> statusData = new HashMap<>();
-        statusData.put("timestamp", System.currentTimeMillis());
-        statusData.put("batteryLevel", batteryLevel);
-        statusData.put("isCharging", isCharging());
+        // Status writes are paced too; a later heartbeat carries the changes
+        if (!writeBudget.tryAcquire(WriteBudget.RecordClass.STATUS, SystemClock.elapsedRealtime())) {
+            Log.d(TAG, "Heartbeat deferred, status write budget spent");
+            return;
+        }
+        saveWriteBudget();
         
-        // TODO: Send status to Firebase
+        // Only the newest status is worth retrying; a queued one it replaces
+        // gives its token back
+        long time = System.currentTimeMillis();
+        uploadScheduler.submitLatest(UploadScheduler.Lane.HIGH, "status",
+                budgeted(WriteBudget.RecordClass.STATUS, uploader.statusUpload(battery, status, time)));
+    }
+
+    // Gather the status fields reported to the guardians. Values are coarse
+    // where precision would only make them change more often.
+    private Map<String, Object> collectStatus(BatteryMonitor.Snapshot battery) {
+        Map<String, Object> status = new HashMap<>();
+        status.put(MonitoringUploader.STATUS_BATTERY_LEVEL, battery.level);
+        status.put(MonitoringUploader.STATUS_CHARGING, battery.charging);
+        status.put("batteryLow", battery.low);
+        status.put("powerProfile", powerGovernor.getProfile().name());
+        status.put("network", bulkUploadPolicy.getNetworkType());
+        status.put("locationPermission", checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED);
+        long freeMb = getFilesDir().getUsableSpace() / (1024 * 1024);
+        status.put("storageFreeMb", freeMb / STORAGE_REPORT_STEP_MB * STORAGE_REPORT_STEP_MB);
+        if (appVersion != null) {
+            status.put("appVersion", appVersion);
+        }
+        return status;
     }
 
-    // Get battery level
-    private int getBatteryLevel() {
-        BatteryManager batteryManager = (BatteryManager) getSystemService(BATTERY_SERVICE);
-        return batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+    // Rescale every periodic task and the location request to the power
+    // profile. Tasks keep their place in the schedule; only the cadence changes.
+    private void applyPowerProfile(PowerGovernor.Profile profile) {
+        if (!isRunning) {
+            return;
+        }
+        Log.d(TAG, "Applying power profile " + profile);
+        
+        wakeupScheduler.reschedule("location-flush", profile.scale(LOCATION_BATCH_MAX_AGE),
+                profile.scale(LOCATION_FLUSH_FLEX));
+        wakeupScheduler.reschedule("wifi-check", profile.scale(WIFI_CHECK_INTERVAL),
+                profile.scale(WIFI_CHECK_FLEX));
+        wakeupScheduler.reschedule("usage", profile.scale(USAGE_UPDATE_INTERVAL),
+                profile.scale(USAGE_UPDATE_FLEX));
+        wakeupScheduler.reschedule("command-poll", profile.scale(COMMAND_POLL_INTERVAL),
+                profile.scale(COMMAND_POLL_FLEX));
+        wakeupScheduler.reschedule("heartbeat", profile.scale(HEARTBEAT_INTERVAL),
+                profile.scale(HEARTBEAT_FLEX));
+        
+        samplingEngine.setPowerProfile(profile);
+        if (currentPlace == null) {
+            // At a known place updates are paused until the device leaves
+            try {
+                requestLocationUpdates();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Error applying power profile to location updates", e);
+            }
+        }
     }
 
-    // Check if device is charging
-    private boolean isCharging() {
-        BatteryManager batteryManager = (BatteryManager) getSystemService(BATTERY_SERVICE);
-        return batteryManager.isCharging();
+    // Send locations and usage totals that were waiting for cheap conditions
+    private void flushHeldBackUploads() {
+        wakeupScheduler.runNow("location-flush");
+        wakeupScheduler.runNow("usage");
     }
 
     // Create notification channel for Android O and above
@@ -309,24 +1259,4 @@ public class DeviceMonitoringService extends Service {
         // For this example, we'll just return Object.class
         return Object.class;
     }
-
-    // Acquire wake lock to keep CPU running
-    private void acquireWakeLock() {
-        if (wakeLock == null) {
-            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-            wakeLock = powerManager.newWakeLock(
-                    PowerManager.PARTIAL_WAKE_LOCK,
-                    "SentryCircle:MonitoringWakeLock"
-            );
-            wakeLock.acquire();
-        }
-    }
-
-    // Release wake lock
-    private void releaseWakeLock() {
-        if (wakeLock != null && wakeLock.isHeld()) {
-            wakeLock.release();
-            wakeLock = null;
-        }
-    }
 }
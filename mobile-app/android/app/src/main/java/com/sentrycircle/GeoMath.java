@@ -0,0 +1,19 @@
+package com.sentrycircle;
+
+// Small geodesy helpers shared by the location pipeline
+final class GeoMath {
+    static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private GeoMath() {
+    }
+
+    // Great-circle distance between two points in meters
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
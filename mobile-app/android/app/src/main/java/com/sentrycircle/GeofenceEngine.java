@@ -0,0 +1,268 @@
+package com.sentrycircle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates circular geofences locally, one fix at a time.
+ *
+ * Zones are indexed in a uniform latitude/longitude grid. Each zone is
+ * registered in every cell its circle (plus the hysteresis margin) touches,
+ * so a fix only tests the zones of its own cell. The index is compiled
+ * into flat primitive arrays when the zone set changes. Evaluating a fix
+ * does not allocate unless a transition occurs.
+ *
+ * A zone is entered once a fix is inside its radius by the hysteresis
+ * margin and exited once a fix is outside by the same margin. Fixes in
+ * between keep the previous state, so jitter along a boundary does not
+ * produce repeated transitions.
+ */
+class GeofenceEngine {
+    // Grid cell size in degrees (~1.1 km of latitude)
+    private static final double CELL_DEGREES = 0.01;
+    // Hysteresis margin bounds (m); the margin follows the fix accuracy
+    private static final double MIN_HYSTERESIS_METERS = 20;
+    private static final double MAX_HYSTERESIS_METERS = 100;
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * GeoMath.EARTH_RADIUS_METERS;
+
+    // An enter or exit, reported with the fix that caused it
+    static final class Transition {
+        final String zoneId;
+        final boolean entered;
+        final double latitude;
+        final double longitude;
+        final long time;
+
+        Transition(String zoneId, boolean entered, double latitude, double longitude, long time) {
+            this.zoneId = zoneId;
+            this.entered = entered;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.time = time;
+        }
+    }
+
+    // Zones, indexed by position in these arrays
+    private String[] zoneIds = new String[0];
+    private double[] zoneLatitudes = new double[0];
+    private double[] zoneLongitudes = new double[0];
+    private double[] zoneRadii = new double[0];
+    private double[] zoneCosLatitudes = new double[0];
+    private boolean[] inside = new boolean[0];
+
+    // Zones currently inside, so exits are found even after leaving their cells
+    private int[] insideList = new int[0];
+    private int insideCount;
+
+    // Open-addressing cell table: cell key -> run of zone indices in cellZones
+    private long[] cellKeys = new long[0];
+    private int[] cellStarts = new int[0];
+    private int[] cellCounts = new int[0];
+    private int[] cellZones = new int[0];
+    private int cellMask = -1;
+
+    private long evaluations;
+    private long candidatesTested;
+    private long transitions;
+
+    // Replace the zone set. Zones whose id was inside before stay inside
+    // until a fix says otherwise.
+    void setZones(List<String> ids, double[] latitudes, double[] longitudes, double[] radii) {
+        List<String> previouslyInside = getInsideZoneIds();
+        int count = ids.size();
+        zoneIds = ids.toArray(new String[count]);
+        zoneLatitudes = latitudes.clone();
+        zoneLongitudes = longitudes.clone();
+        zoneRadii = radii.clone();
+        zoneCosLatitudes = new double[count];
+        for (int i = 0; i < count; i++) {
+            zoneCosLatitudes[i] = Math.cos(Math.toRadians(latitudes[i]));
+        }
+        inside = new boolean[count];
+        insideList = new int[count];
+        insideCount = 0;
+        restoreInside(previouslyInside);
+        buildIndex();
+    }
+
+    // Mark zones as inside without reporting transitions (state restored after a restart)
+    void restoreInside(List<String> ids) {
+        for (int i = 0; i < zoneIds.length; i++) {
+            if (!inside[i] && ids.contains(zoneIds[i])) {
+                inside[i] = true;
+                insideList[insideCount++] = i;
+            }
+        }
+    }
+
+    List<String> getInsideZoneIds() {
+        List<String> ids = new ArrayList<>(insideCount);
+        for (int i = 0; i < insideCount; i++) {
+            ids.add(zoneIds[insideList[i]]);
+        }
+        return ids;
+    }
+
+    int getZoneCount() {
+        return zoneIds.length;
+    }
+
+    // Evaluate a fix; transitions are appended to out
+    void evaluate(double latitude, double longitude, float accuracy, long time, List<Transition> out) {
+        if (zoneIds.length == 0) {
+            return;
+        }
+        evaluations++;
+        double margin = Math.max(MIN_HYSTERESIS_METERS, Math.min(MAX_HYSTERESIS_METERS, accuracy));
+
+        // Zones currently inside are always tested, wherever the fix is
+        for (int n = insideCount - 1; n >= 0; n--) {
+            int zone = insideList[n];
+            double exitRadius = zoneRadii[zone] + margin;
+            if (distanceSquared(zone, latitude, longitude) > exitRadius * exitRadius) {
+                inside[zone] = false;
+                insideList[n] = insideList[--insideCount];
+                record(zone, false, latitude, longitude, time, out);
+            }
+        }
+
+        int slot = findCell(cellKey(latitude, longitude));
+        if (slot < 0) {
+            return;
+        }
+        int end = cellStarts[slot] + cellCounts[slot];
+        for (int c = cellStarts[slot]; c < end; c++) {
+            int zone = cellZones[c];
+            candidatesTested++;
+            if (inside[zone]) {
+                continue;
+            }
+            // Small zones cannot give up more than half their radius to the margin
+            double enterRadius = Math.max(zoneRadii[zone] - margin, zoneRadii[zone] / 2);
+            if (distanceSquared(zone, latitude, longitude) <= enterRadius * enterRadius) {
+                inside[zone] = true;
+                insideList[insideCount++] = zone;
+                record(zone, true, latitude, longitude, time, out);
+            }
+        }
+    }
+
+    String getStats() {
+        double perFix = evaluations == 0 ? 0 : (double) candidatesTested / evaluations;
+        return "zones=" + zoneIds.length + " cells=" + countCells()
+                + " evaluations=" + evaluations + " candidatesPerFix=" + String.format("%.1f", perFix)
+                + " transitions=" + transitions;
+    }
+
+    private void record(int zone, boolean entered, double latitude, double longitude, long time,
+            List<Transition> out) {
+        transitions++;
+        out.add(new Transition(zoneIds[zone], entered, latitude, longitude, time));
+    }
+
+    // Squared equirectangular distance to a zone centre (m^2); exact enough
+    // at geofence scales and needs no trigonometry per fix
+    private double distanceSquared(int zone, double latitude, double longitude) {
+        double dx = (longitude - zoneLongitudes[zone]) * zoneCosLatitudes[zone] * METERS_PER_DEGREE;
+        double dy = (latitude - zoneLatitudes[zone]) * METERS_PER_DEGREE;
+        return dx * dx + dy * dy;
+    }
+
+    private static long cellKey(double latitude, double longitude) {
+        long row = (long) Math.floor(latitude / CELL_DEGREES);
+        long column = (long) Math.floor(longitude / CELL_DEGREES);
+        return (row << 32) ^ (column & 0xFFFFFFFFL);
+    }
+
+    private int findCell(long key) {
+        if (cellMask < 0) {
+            return -1;
+        }
+        int slot = hash(key) & cellMask;
+        while (cellCounts[slot] != 0) {
+            if (cellKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & cellMask;
+        }
+        return -1;
+    }
+
+    private int countCells() {
+        int cells = 0;
+        for (int count : cellCounts) {
+            if (count != 0) {
+                cells++;
+            }
+        }
+        return cells;
+    }
+
+    // Register every zone in the cells overlapped by its bounding box,
+    // widened by the largest margin so an exit margin never misses a zone
+    private void buildIndex() {
+        Map<Long, List<Integer>> cells = new HashMap<>();
+        int entries = 0;
+        for (int zone = 0; zone < zoneIds.length; zone++) {
+            double reach = zoneRadii[zone] + MAX_HYSTERESIS_METERS;
+            double latitudeReach = reach / METERS_PER_DEGREE;
+            double longitudeReach = reach / (METERS_PER_DEGREE * Math.max(zoneCosLatitudes[zone], 0.01));
+            long firstRow = (long) Math.floor((zoneLatitudes[zone] - latitudeReach) / CELL_DEGREES);
+            long lastRow = (long) Math.floor((zoneLatitudes[zone] + latitudeReach) / CELL_DEGREES);
+            long firstColumn = (long) Math.floor((zoneLongitudes[zone] - longitudeReach) / CELL_DEGREES);
+            long lastColumn = (long) Math.floor((zoneLongitudes[zone] + longitudeReach) / CELL_DEGREES);
+            for (long row = firstRow; row <= lastRow; row++) {
+                for (long column = firstColumn; column <= lastColumn; column++) {
+                    Long key = (row << 32) ^ (column & 0xFFFFFFFFL);
+                    List<Integer> cell = cells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<>(2);
+                        cells.put(key, cell);
+                    }
+                    cell.add(zone);
+                    entries++;
+                }
+            }
+        }
+
+        if (cells.isEmpty()) {
+            cellKeys = new long[0];
+            cellStarts = new int[0];
+            cellCounts = new int[0];
+            cellZones = new int[0];
+            cellMask = -1;
+            return;
+        }
+
+        // Keep the table at most half full so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(cells.size() * 2 - 1, 1)) << 1;
+        cellKeys = new long[capacity];
+        cellStarts = new int[capacity];
+        cellCounts = new int[capacity];
+        cellZones = new int[entries];
+        cellMask = capacity - 1;
+
+        int next = 0;
+        for (Map.Entry<Long, List<Integer>> cell : cells.entrySet()) {
+            long key = cell.getKey();
+            int slot = hash(key) & cellMask;
+            while (cellCounts[slot] != 0) {
+                slot = (slot + 1) & cellMask;
+            }
+            cellKeys[slot] = key;
+            cellStarts[slot] = next;
+            cellCounts[slot] = cell.getValue().size();
+            for (int zone : cell.getValue()) {
+                cellZones[next++] = zone;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,197 @@
+package com.sentrycircle;
+
+/**
+ * Constant-velocity Kalman filter for location fixes.
+ *
+ * Smooths fixes by their reported accuracy and rejects fixes that imply a
+ * physically impossible jump or fall far outside the filter's prediction.
+ * State is kept per axis in meters east/north of a local origin, in
+ * primitive fields only, so updating never allocates.
+ *
+ * After {@link #update} accepts a fix, the filtered estimate is available
+ * from the getters until the next update.
+ */
+class KalmanLocationFilter {
+    // Continuous white-noise acceleration intensity (m^2/s^3): how quickly
+    // velocity may drift between fixes
+    private static final double ACCELERATION_NOISE = 0.05;
+    // Fixes implying travel faster than this are rejected (m/s, ~200 km/h)
+    private static final double MAX_SPEED_MPS = 55.0;
+    // Fixes worse than this are not worth filtering (m)
+    private static final double MAX_ACCURACY_METERS = 500.0;
+    // Squared Mahalanobis distance beyond which a fix is an outlier (~4 sigma)
+    private static final double INNOVATION_GATE = 16.0;
+    // After this many consecutive rejections, trust the fixes and restart
+    private static final int MAX_CONSECUTIVE_REJECTS = 3;
+    // Move the local origin once the estimate is this far from it (m)
+    private static final double MAX_ORIGIN_OFFSET = 10000.0;
+
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * GeoMath.EARTH_RADIUS_METERS;
+
+    private boolean initialized;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLongitude;
+    private long lastTime;
+    private int consecutiveRejects;
+
+    // Per-axis state: position, velocity and covariance [p00 p01; p01 p11]
+    private double x;
+    private double vx;
+    private double x00;
+    private double x01;
+    private double x11;
+    private double y;
+    private double vy;
+    private double y00;
+    private double y01;
+    private double y11;
+
+    private long accepted;
+    private long rejected;
+
+    // Feed a fix; returns false when it was rejected as an outlier
+    boolean update(double latitude, double longitude, float accuracy, long time) {
+        if (accuracy <= 0 || accuracy > MAX_ACCURACY_METERS) {
+            rejected++;
+            return false;
+        }
+        double variance = (double) accuracy * accuracy;
+
+        if (!initialized || consecutiveRejects >= MAX_CONSECUTIVE_REJECTS) {
+            reset(latitude, longitude, variance, time);
+            accepted++;
+            return true;
+        }
+        if (time <= lastTime) {
+            rejected++;
+            return false;
+        }
+
+        double dt = (time - lastTime) / 1000.0;
+        double zx = (longitude - originLongitude) * metersPerDegreeLongitude;
+        double zy = (latitude - originLatitude) * METERS_PER_DEGREE;
+
+        // Reject jumps no child could make, allowing for both fixes' error
+        double jump = Math.sqrt((zx - x) * (zx - x) + (zy - y) * (zy - y));
+        double slack = accuracy + Math.sqrt(Math.max(x00, y00));
+        if ((jump - slack) / dt > MAX_SPEED_MPS) {
+            return reject();
+        }
+
+        // Predict
+        double q = ACCELERATION_NOISE;
+        double dt2 = dt * dt;
+        double q00 = q * dt2 * dt / 3;
+        double q01 = q * dt2 / 2;
+        double q11 = q * dt;
+
+        double px = x + vx * dt;
+        double px00 = x00 + 2 * dt * x01 + dt2 * x11 + q00;
+        double px01 = x01 + dt * x11 + q01;
+        double px11 = x11 + q11;
+
+        double py = y + vy * dt;
+        double py00 = y00 + 2 * dt * y01 + dt2 * y11 + q00;
+        double py01 = y01 + dt * y11 + q01;
+        double py11 = y11 + q11;
+
+        // Gate on the innovation before committing the update
+        double sx = px00 + variance;
+        double sy = py00 + variance;
+        double ix = zx - px;
+        double iy = zy - py;
+        if (ix * ix / sx + iy * iy / sy > INNOVATION_GATE) {
+            return reject();
+        }
+
+        // Update
+        double kx0 = px00 / sx;
+        double kx1 = px01 / sx;
+        x = px + kx0 * ix;
+        vx = vx + kx1 * ix;
+        x00 = (1 - kx0) * px00;
+        x01 = (1 - kx0) * px01;
+        x11 = px11 - kx1 * px01;
+
+        double ky0 = py00 / sy;
+        double ky1 = py01 / sy;
+        y = py + ky0 * iy;
+        vy = vy + ky1 * iy;
+        y00 = (1 - ky0) * py00;
+        y01 = (1 - ky0) * py01;
+        y11 = py11 - ky1 * py01;
+
+        lastTime = time;
+        consecutiveRejects = 0;
+        accepted++;
+
+        if (Math.abs(x) > MAX_ORIGIN_OFFSET || Math.abs(y) > MAX_ORIGIN_OFFSET) {
+            recenter();
+        }
+        return true;
+    }
+
+    double getLatitude() {
+        return originLatitude + y / METERS_PER_DEGREE;
+    }
+
+    double getLongitude() {
+        return originLongitude + x / metersPerDegreeLongitude;
+    }
+
+    // One-sigma position error of the estimate (m)
+    float getAccuracy() {
+        return (float) Math.sqrt(Math.max(x00, y00));
+    }
+
+    // Estimated ground speed (m/s)
+    float getSpeed() {
+        return (float) Math.sqrt(vx * vx + vy * vy);
+    }
+
+    long getTime() {
+        return lastTime;
+    }
+
+    String getStats() {
+        return "accepted=" + accepted + " rejected=" + rejected;
+    }
+
+    private boolean reject() {
+        consecutiveRejects++;
+        rejected++;
+        return false;
+    }
+
+    private void reset(double latitude, double longitude, double variance, long time) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        x = 0;
+        y = 0;
+        vx = 0;
+        vy = 0;
+        x00 = variance;
+        y00 = variance;
+        x01 = 0;
+        y01 = 0;
+        // Unknown initial velocity: allow a brisk walk either way
+        x11 = 4.0;
+        y11 = 4.0;
+        lastTime = time;
+        consecutiveRejects = 0;
+        initialized = true;
+    }
+
+    // Move the origin to the current estimate to keep the projection accurate
+    private void recenter() {
+        double latitude = getLatitude();
+        double longitude = getLongitude();
+        originLatitude = latitude;
+        originLongitude = longitude;
+        metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        x = 0;
+        y = 0;
+    }
+}
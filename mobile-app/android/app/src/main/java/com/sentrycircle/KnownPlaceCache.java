@@ -0,0 +1,246 @@
+package com.sentrycircle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the places the device spends long stationary periods at,
+ * keyed by the Wi-Fi access points visible there.
+ *
+ * Each place keeps its position and up to {@link #MAX_BSSIDS_PER_PLACE}
+ * BSSIDs (as 48-bit MAC values) ranked by how often they were seen. A scan
+ * matches a place when enough of its strongest BSSIDs are among the place's
+ * BSSIDs. Only places confirmed on several separate visits are matched, so
+ * a one-off stop does not stand in for a GPS fix.
+ */
+class KnownPlaceCache {
+    static final int MAX_BSSIDS_PER_PLACE = 12;
+    private static final int MAX_PLACES = 16;
+    // Fixes this close to a place's position belong to it (m)
+    private static final double PLACE_RADIUS_METERS = 100;
+    // Visits needed before a place is trusted in place of a fix
+    private static final int MIN_VISITS = 3;
+    // Fewest shared BSSIDs and smallest overlap for a confident match
+    private static final int MIN_COMMON_BSSIDS = 3;
+    private static final double MIN_MATCH_SCORE = 0.6;
+    // A new visit starts after being away this long
+    private static final long VISIT_GAP = 2 * 60 * 60 * 1000; // 2 hours
+
+    static final class Place {
+        final int id;
+        double latitude;
+        double longitude;
+        int visits;
+        long lastSeen;
+        final long[] bssids = new long[MAX_BSSIDS_PER_PLACE];
+        final int[] seenCounts = new int[MAX_BSSIDS_PER_PLACE];
+        int bssidCount;
+
+        Place(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Place[] places = new Place[MAX_PLACES];
+    private int placeCount;
+    private int nextId = 1;
+
+    private long matches;
+    private long misses;
+
+    // Record a scan taken at a good stationary fix, creating or updating the place there
+    void learn(double latitude, double longitude, long[] scan, int scanCount, long time) {
+        if (scanCount == 0) {
+            return;
+        }
+        Place place = nearest(latitude, longitude);
+        if (place == null) {
+            place = newPlace();
+            place.latitude = latitude;
+            place.longitude = longitude;
+            place.visits = 1;
+        } else {
+            // Drift the position slowly towards repeated fixes
+            place.latitude += (latitude - place.latitude) * 0.1;
+            place.longitude += (longitude - place.longitude) * 0.1;
+            if (time - place.lastSeen > VISIT_GAP) {
+                place.visits++;
+            }
+        }
+        place.lastSeen = time;
+        for (int i = 0; i < scanCount; i++) {
+            addBssid(place, scan[i]);
+        }
+    }
+
+    // Return the trusted place the scan confidently matches, or null
+    Place match(long[] scan, int scanCount, long time) {
+        Place best = null;
+        double bestScore = 0;
+        for (int p = 0; p < placeCount; p++) {
+            Place place = places[p];
+            if (place.visits < MIN_VISITS) {
+                continue;
+            }
+            int common = 0;
+            for (int i = 0; i < scanCount; i++) {
+                if (indexOf(place, scan[i]) >= 0) {
+                    common++;
+                }
+            }
+            double score = (double) common / Math.min(scanCount, place.bssidCount);
+            if (common >= MIN_COMMON_BSSIDS && score >= MIN_MATCH_SCORE && score > bestScore) {
+                best = place;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        matches++;
+        if (time - best.lastSeen > VISIT_GAP) {
+            best.visits++;
+        }
+        best.lastSeen = time;
+        return best;
+    }
+
+    int size() {
+        return placeCount;
+    }
+
+    String getStats() {
+        return "places=" + placeCount + " matches=" + matches + " misses=" + misses;
+    }
+
+    JSONArray toJson() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int p = 0; p < placeCount; p++) {
+            Place place = places[p];
+            JSONArray bssids = new JSONArray();
+            JSONArray counts = new JSONArray();
+            for (int i = 0; i < place.bssidCount; i++) {
+                bssids.put(place.bssids[i]);
+                counts.put(place.seenCounts[i]);
+            }
+            JSONObject json = new JSONObject();
+            json.put("id", place.id);
+            json.put("latitude", place.latitude);
+            json.put("longitude", place.longitude);
+            json.put("visits", place.visits);
+            json.put("lastSeen", place.lastSeen);
+            json.put("bssids", bssids);
+            json.put("counts", counts);
+            array.put(json);
+        }
+        return array;
+    }
+
+    void loadJson(JSONArray array) throws JSONException {
+        placeCount = 0;
+        for (int p = 0; p < array.length() && p < MAX_PLACES; p++) {
+            JSONObject json = array.getJSONObject(p);
+            Place place = new Place(json.getInt("id"));
+            place.latitude = json.getDouble("latitude");
+            place.longitude = json.getDouble("longitude");
+            place.visits = json.getInt("visits");
+            place.lastSeen = json.getLong("lastSeen");
+            JSONArray bssids = json.getJSONArray("bssids");
+            JSONArray counts = json.getJSONArray("counts");
+            place.bssidCount = Math.min(bssids.length(), MAX_BSSIDS_PER_PLACE);
+            for (int i = 0; i < place.bssidCount; i++) {
+                place.bssids[i] = bssids.getLong(i);
+                place.seenCounts[i] = counts.getInt(i);
+            }
+            places[placeCount++] = place;
+            nextId = Math.max(nextId, place.id + 1);
+        }
+    }
+
+    // Parse "aa:bb:cc:dd:ee:ff" into its 48-bit value, or -1 if malformed
+    static long parseBssid(String bssid) {
+        if (bssid == null || bssid.length() != 17) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private Place nearest(double latitude, double longitude) {
+        Place nearest = null;
+        double nearestMeters = PLACE_RADIUS_METERS;
+        for (int p = 0; p < placeCount; p++) {
+            double meters = GeoMath.distanceMeters(latitude, longitude, places[p].latitude, places[p].longitude);
+            if (meters <= nearestMeters) {
+                nearest = places[p];
+                nearestMeters = meters;
+            }
+        }
+        return nearest;
+    }
+
+    // Add a place, evicting the least recently seen one when full
+    private Place newPlace() {
+        Place place = new Place(nextId++);
+        if (placeCount < MAX_PLACES) {
+            places[placeCount++] = place;
+            return place;
+        }
+        int oldest = 0;
+        for (int p = 1; p < placeCount; p++) {
+            if (places[p].lastSeen < places[oldest].lastSeen) {
+                oldest = p;
+            }
+        }
+        places[oldest] = place;
+        return place;
+    }
+
+    // Count a sighting, replacing the least seen BSSID when the place is full
+    private void addBssid(Place place, long bssid) {
+        int index = indexOf(place, bssid);
+        if (index >= 0) {
+            place.seenCounts[index]++;
+            return;
+        }
+        if (place.bssidCount < MAX_BSSIDS_PER_PLACE) {
+            place.bssids[place.bssidCount] = bssid;
+            place.seenCounts[place.bssidCount] = 1;
+            place.bssidCount++;
+            return;
+        }
+        int weakest = 0;
+        for (int i = 1; i < place.bssidCount; i++) {
+            if (place.seenCounts[i] < place.seenCounts[weakest]) {
+                weakest = i;
+            }
+        }
+        place.bssids[weakest] = bssid;
+        place.seenCounts[weakest] = 1;
+    }
+
+    private static int indexOf(Place place, long bssid) {
+        for (int i = 0; i < place.bssidCount; i++) {
+            if (place.bssids[i] == bssid) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
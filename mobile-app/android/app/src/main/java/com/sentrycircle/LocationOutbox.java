@@ -0,0 +1,279 @@
+package com.sentrycircle;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe on-device outbox for location fixes.
+ *
+ * Fixes are appended to a journal of fixed-size, checksummed records. A
+ * separate cursor file records how many leading records the server has
+ * acknowledged. Acknowledged records are dropped by compaction, which copies
+ * the unacknowledged tail into a fresh journal and renames it into place.
+ */
+class LocationOutbox {
+    private static final String TAG = "LocationOutbox";
+
+    // latitude(8) + longitude(8) + accuracy(4) + time(8) + crc(4)
+    static final int RECORD_SIZE = 32;
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - 4;
+
+    // Compact once this many acknowledged records sit at the head of the journal
+    private static final int COMPACT_THRESHOLD = 256;
+
+    // A fix recorded in the outbox
+    static final class Fix {
+        final double latitude;
+        final double longitude;
+        final float accuracy;
+        final long time;
+
+        Fix(double latitude, double longitude, float accuracy, long time) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.time = time;
+        }
+    }
+
+    private final File journalFile;
+    private final File cursorFile;
+    private final int maxPending;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    private long totalRecords;
+    private long ackedRecords;
+    private long oldestPendingTime;
+
+    LocationOutbox(File journalFile, int maxPending) {
+        this.journalFile = journalFile;
+        this.cursorFile = new File(journalFile.getPath() + ".cursor");
+        this.maxPending = maxPending;
+    }
+
+    // Recover journal state, discarding any record torn by a crash mid-append
+    synchronized void open() throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        if (tmp.exists() && !tmp.delete()) {
+            Log.w(TAG, "Unable to delete stale compaction file");
+        }
+
+        totalRecords = 0;
+        if (journalFile.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                long validRecords = 0;
+                long count = raf.length() / RECORD_SIZE;
+                byte[] buffer = new byte[RECORD_SIZE];
+                while (validRecords < count) {
+                    raf.seek(validRecords * RECORD_SIZE);
+                    raf.readFully(buffer);
+                    if (!isValid(buffer)) {
+                        break;
+                    }
+                    validRecords++;
+                }
+                if (raf.length() != validRecords * RECORD_SIZE) {
+                    Log.w(TAG, "Truncating journal from " + raf.length() + " to "
+                            + validRecords * RECORD_SIZE + " bytes");
+                    raf.setLength(validRecords * RECORD_SIZE);
+                }
+                totalRecords = validRecords;
+            }
+        }
+
+        ackedRecords = Math.min(readCursor(), totalRecords);
+        oldestPendingTime = pendingCount() > 0 ? readFix(ackedRecords).time : 0;
+    }
+
+    // Append fixes with a single write and sync
+    synchronized void appendAll(List<Fix> fixes) throws IOException {
+        if (fixes.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(fixes.size() * RECORD_SIZE);
+        for (Fix fix : fixes) {
+            bytes.write(encode(fix), 0, RECORD_SIZE);
+        }
+
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        }
+
+        if (pendingCount() == 0) {
+            oldestPendingTime = fixes.get(0).time;
+        }
+        totalRecords += fixes.size();
+
+        // Bound the outbox by dropping the oldest fixes when uploads keep failing
+        long overflow = pendingCount() - maxPending;
+        if (overflow > 0) {
+            Log.w(TAG, "Outbox full, dropping " + overflow + " oldest fixes");
+            acknowledge((int) overflow);
+        }
+    }
+
+    // Read up to maxCount unacknowledged fixes, oldest first
+    synchronized List<Fix> peek(int maxCount) throws IOException {
+        int count = (int) Math.min(maxCount, pendingCount());
+        List<Fix> fixes = new ArrayList<>(count);
+        if (count == 0) {
+            return fixes;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)))) {
+            skipFully(in, ackedRecords * RECORD_SIZE);
+            byte[] buffer = new byte[RECORD_SIZE];
+            for (int i = 0; i < count; i++) {
+                in.readFully(buffer);
+                fixes.add(decode(buffer));
+            }
+        }
+        return fixes;
+    }
+
+    // Mark the oldest count fixes as delivered
+    synchronized void acknowledge(int count) throws IOException {
+        ackedRecords = Math.min(totalRecords, ackedRecords + count);
+
+        if (pendingCount() == 0) {
+            // Everything delivered: reset to an empty journal
+            writeCursor(0);
+            if (journalFile.exists() && !journalFile.delete()) {
+                throw new IOException("Unable to delete journal " + journalFile);
+            }
+            totalRecords = 0;
+            ackedRecords = 0;
+            oldestPendingTime = 0;
+            return;
+        }
+
+        if (ackedRecords >= COMPACT_THRESHOLD) {
+            compact();
+        } else {
+            writeCursor(ackedRecords);
+        }
+        oldestPendingTime = readFix(ackedRecords).time;
+    }
+
+    synchronized long pendingCount() {
+        return totalRecords - ackedRecords;
+    }
+
+    // Capture time of the oldest undelivered fix, or 0 when empty
+    synchronized long oldestPendingTime() {
+        return oldestPendingTime;
+    }
+
+    // Copy the unacknowledged tail into a fresh journal.
+    // The cursor is reset before the rename, so a crash in between re-sends
+    // already acknowledged fixes rather than losing pending ones.
+    private void compact() throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (RandomAccessFile in = new RandomAccessFile(journalFile, "r");
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            in.seek(ackedRecords * RECORD_SIZE);
+            byte[] buffer = new byte[RECORD_SIZE * 64];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.getFD().sync();
+        }
+
+        writeCursor(0);
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("Unable to replace journal " + journalFile);
+        }
+
+        Log.d(TAG, "Compacted " + ackedRecords + " acknowledged fixes");
+        totalRecords -= ackedRecords;
+        ackedRecords = 0;
+    }
+
+    private Fix readFix(long index) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r")) {
+            byte[] buffer = new byte[RECORD_SIZE];
+            raf.seek(index * RECORD_SIZE);
+            raf.readFully(buffer);
+            return decode(buffer);
+        }
+    }
+
+    private long readCursor() {
+        if (!cursorFile.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(cursorFile))) {
+            return in.readLong();
+        } catch (IOException e) {
+            Log.w(TAG, "Unreadable outbox cursor, resending from start", e);
+            return 0;
+        }
+    }
+
+    // Write the cursor atomically through a temporary file
+    private void writeCursor(long value) throws IOException {
+        File tmp = new File(cursorFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeLong(value);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tmp.renameTo(cursorFile)) {
+            throw new IOException("Unable to replace cursor " + cursorFile);
+        }
+    }
+
+    private byte[] encode(Fix fix) {
+        record.clear();
+        record.putDouble(fix.latitude);
+        record.putDouble(fix.longitude);
+        record.putFloat(fix.accuracy);
+        record.putLong(fix.time);
+        crc.reset();
+        crc.update(record.array(), 0, PAYLOAD_SIZE);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private static Fix decode(byte[] buffer) {
+        ByteBuffer in = ByteBuffer.wrap(buffer);
+        return new Fix(in.getDouble(), in.getDouble(), in.getFloat(), in.getLong());
+    }
+
+    private boolean isValid(byte[] buffer) {
+        crc.reset();
+        crc.update(buffer, 0, PAYLOAD_SIZE);
+        return (int) crc.getValue() == ByteBuffer.wrap(buffer, PAYLOAD_SIZE, 4).getInt();
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException("Journal shorter than cursor");
+            }
+            bytes -= skipped;
+        }
+    }
+}
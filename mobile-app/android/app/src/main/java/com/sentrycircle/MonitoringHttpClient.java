@@ -0,0 +1,219 @@
+package com.sentrycircle;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * The one HTTP client shared by every request the service makes.
+ *
+ * Uploads, status reports and command fetches all go through the same
+ * OkHttp connection pool, so a request made shortly after another reuses
+ * its warm connection (over HTTP/2, several requests share it at once)
+ * instead of paying for a TCP and TLS handshake on a cold radio. When a new
+ * connection is needed, the shared TLS context resumes the earlier session.
+ *
+ * Host lookups are cached for {@link #DNS_TTL}, and a stale entry is used
+ * if a fresh lookup fails. Request bodies of at least {@link #GZIP_MIN_BYTES}
+ * are gzipped for endpoints that accept it.
+ *
+ * The outcome of every request is reported to the shared {@link RetryEngine},
+ * whose per-endpoint circuit breakers the upload scheduler waits on, and the
+ * write rates the worker announces configure the shared {@link WriteBudget}.
+ */
+final class MonitoringHttpClient {
+    private static final long DNS_TTL = 10 * 60 * 1000; // 10 minutes
+    private static final int GZIP_MIN_BYTES = 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int TIMEOUT_MS = 30 * 1000;
+    // Idle connections are kept this long, past the usual gap between uploads
+    private static final long KEEP_ALIVE = 5 * 60 * 1000; // 5 minutes
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    private static MonitoringHttpClient instance;
+
+    private static final class DnsEntry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+
+        DnsEntry(List<InetAddress> addresses, long resolvedAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private final Map<String, DnsEntry> dnsCache = new HashMap<>();
+    private final OkHttpClient client;
+    private final RetryEngine retryEngine = new RetryEngine();
+    private final WriteBudget writeBudget = new WriteBudget(SystemClock.elapsedRealtime());
+
+    private long dnsHits;
+    private long dnsLookups;
+    private long dnsStaleHits;
+    private long gzippedBytes;
+    private long gzipSavedBytes;
+
+    private MonitoringHttpClient() {
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE, TimeUnit.MILLISECONDS))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dns(new Dns() {
+                    @Override
+                    public List<InetAddress> lookup(String host) throws UnknownHostException {
+                        return resolve(host);
+                    }
+                })
+                .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .writeTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    static synchronized MonitoringHttpClient get() {
+        if (instance == null) {
+            instance = new MonitoringHttpClient();
+        }
+        return instance;
+    }
+
+    OkHttpClient client() {
+        return client;
+    }
+
+    RetryEngine retryEngine() {
+        return retryEngine;
+    }
+
+    WriteBudget writeBudget() {
+        return writeBudget;
+    }
+
+    // A client on the shared pool that waits up to readTimeoutMs for a response,
+    // for requests the server may park
+    OkHttpClient withReadTimeout(long readTimeoutMs) {
+        return client.newBuilder().readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS).build();
+    }
+
+    // Start a request carrying the device's credentials
+    Request.Builder request(String url, String authToken) {
+        return new Request.Builder()
+                .url(url)
+                .header("Authorization", "Bearer " + authToken)
+                .header("Accept", "application/json");
+    }
+
+    // Attach a body to the request as a POST or PUT. With gzip allowed (the
+    // endpoint accepts Content-Encoding: gzip) large bodies are compressed.
+    Request.Builder body(Request.Builder request, String method, String contentType, byte[] body,
+            boolean gzip) {
+        if (gzip && body.length >= GZIP_MIN_BYTES) {
+            byte[] compressed = compress(body);
+            if (compressed.length < body.length) {
+                request.header("Content-Encoding", "gzip");
+                synchronized (this) {
+                    gzippedBytes += body.length;
+                    gzipSavedBytes += body.length - compressed.length;
+                }
+                body = compressed;
+            }
+        }
+        RequestBody requestBody = RequestBody.create(body, MediaType.parse(contentType));
+        return "PUT".equals(method) ? request.put(requestBody) : request.post(requestBody);
+    }
+
+    Response execute(Request request) throws IOException {
+        return execute(client.newCall(request), false);
+    }
+
+    // Execute a call made on this client or one derived from it (e.g. by
+    // withReadTimeout). For a request the server may park, running into the
+    // read timeout is not held against the endpoint.
+    Response execute(Call call, boolean parked) throws IOException {
+        String endpoint = RetryEngine.endpointOf(call.request().url().encodedPath());
+        Response response;
+        try {
+            response = call.execute();
+        } catch (SocketTimeoutException e) {
+            if (!parked) {
+                retryEngine.onResult(endpoint, 0);
+            }
+            throw e;
+        } catch (IOException e) {
+            retryEngine.onResult(endpoint, 0);
+            throw e;
+        }
+        retryEngine.onResult(endpoint, response.code());
+        String budget = response.header(WriteBudget.HEADER);
+        if (budget != null) {
+            writeBudget.configure(budget, SystemClock.elapsedRealtime());
+        }
+        return response;
+    }
+
+    synchronized String getStats() {
+        ConnectionPool pool = client.connectionPool();
+        return "connections=" + pool.connectionCount() + " idle=" + pool.idleConnectionCount()
+                + " dnsLookups=" + dnsLookups + " dnsHits=" + dnsHits + " dnsStaleHits=" + dnsStaleHits
+                + " gzippedBytes=" + gzippedBytes + " gzipSavedBytes=" + gzipSavedBytes;
+    }
+
+    private static byte[] compress(byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body);
+        } catch (IOException e) {
+            // Cannot happen writing to memory; send uncompressed
+            return body;
+        }
+        return compressed.toByteArray();
+    }
+
+    private List<InetAddress> resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        DnsEntry cached;
+        synchronized (this) {
+            cached = dnsCache.get(host);
+            if (cached != null && now - cached.resolvedAt < DNS_TTL) {
+                dnsHits++;
+                return cached.addresses;
+            }
+            dnsLookups++;
+        }
+        try {
+            List<InetAddress> addresses = Dns.SYSTEM.lookup(host);
+            synchronized (this) {
+                dnsCache.put(host, new DnsEntry(addresses, now));
+            }
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (cached == null) {
+                throw e;
+            }
+            // The resolver is unreachable; the old address most likely still works
+            synchronized (this) {
+                dnsStaleHits++;
+            }
+            return cached.addresses;
+        }
+    }
+}
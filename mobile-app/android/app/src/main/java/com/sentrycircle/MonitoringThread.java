@@ -0,0 +1,94 @@
+package com.sentrycircle;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Background looper that owns all monitoring callbacks (location, usage,
+ * heartbeat), keeping them off the main thread shared with the UI and the
+ * React Native bridge.
+ *
+ * Work posted through this class is timed from the moment it became due to
+ * the moment it started running, so queue latency can be observed.
+ */
+class MonitoringThread implements Executor {
+    private static final String TAG = "MonitoringThread";
+    // Log any task that waited longer than this in the queue
+    private static final long SLOW_DISPATCH_THRESHOLD_MS = 250;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private long dispatchCount;
+    private long totalLatencyMs;
+    private long maxLatencyMs;
+
+    MonitoringThread() {
+        thread = new HandlerThread("SentryCircle-Monitoring", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    Handler getHandler() {
+        return handler;
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        post(task);
+    }
+
+    void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    void postDelayed(Runnable task, long delayMs) {
+        final long dueAt = SystemClock.uptimeMillis() + delayMs;
+        handler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                recordLatency(SystemClock.uptimeMillis() - dueAt);
+                task.run();
+            }
+        }, task, dueAt);
+    }
+
+    // Cancel pending runs of a task posted through this thread
+    void removeCallbacks(Runnable task) {
+        handler.removeCallbacksAndMessages(task);
+    }
+
+    // Stop the looper once already-due work has run
+    void quit() {
+        Log.d(TAG, "Quitting: " + getLatencySummary());
+        thread.quitSafely();
+    }
+
+    synchronized String getLatencySummary() {
+        long average = dispatchCount == 0 ? 0 : totalLatencyMs / dispatchCount;
+        return "dispatched=" + dispatchCount + " avgLatencyMs=" + average + " maxLatencyMs=" + maxLatencyMs;
+    }
+
+    private synchronized void recordLatency(long latencyMs) {
+        dispatchCount++;
+        totalLatencyMs += latencyMs;
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+        if (latencyMs > SLOW_DISPATCH_THRESHOLD_MS) {
+            Log.w(TAG, "Monitoring task waited " + latencyMs + " ms in queue");
+        }
+    }
+}
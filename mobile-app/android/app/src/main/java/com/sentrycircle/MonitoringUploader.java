@@ -0,0 +1,498 @@
+package com.sentrycircle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Uploads monitoring records to the worker.
+ *
+ * Records are sent in the compact binary format by default. If the server
+ * answers 415 Unsupported Media Type, the uploader switches to JSON for the
+ * rest of its lifetime and resends the same records.
+ *
+ * Every upload carries the current battery state, so any accepted upload
+ * doubles as a heartbeat; {@link #needsHeartbeat} tells whether a separate
+ * status upload is still due.
+ *
+ * Each upload is also available as an {@link UploadScheduler.SyncUpload}, so
+ * the scheduler can send several of them as records of one sync envelope.
+ * Records are JSON: the envelope as a whole is gzipped instead.
+ */
+class MonitoringUploader {
+    // Status fields that also ride along on every other upload
+    static final String STATUS_BATTERY_LEVEL = "batteryLevel";
+    static final String STATUS_CHARGING = "isCharging";
+
+    private static final String TAG = "MonitoringUploader";
+    private static final int HTTP_CONFLICT = 409;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    // Battery levels (%) closer than this count as the same reported state
+    private static final int BATTERY_LEVEL_STEP = 5;
+
+    private final String baseUrl;
+    private final String deviceId;
+    private final String authToken;
+    private final StatusSnapshotEncoder statusEncoder = new StatusSnapshotEncoder();
+    private final MonitoringHttpClient http = MonitoringHttpClient.get();
+
+    private volatile boolean binarySupported = true;
+    private long bytesSent;
+    private long recordsSent;
+    private long heartbeatsSent;
+    private long heartbeatsSkipped;
+    // When the server last accepted an upload (elapsed realtime), and the
+    // battery state that upload carried
+    private long lastContact;
+    private BatteryMonitor.Snapshot lastReportedBattery;
+
+    MonitoringUploader(String baseUrl, String deviceId, String authToken) {
+        this.baseUrl = baseUrl;
+        this.deviceId = deviceId;
+        this.authToken = authToken;
+    }
+
+    // Upload a batch of fixes, returning true once the server accepted it
+    boolean uploadLocations(List<LocationOutbox.Fix> fixes) {
+        BatteryMonitor.Snapshot battery = BatteryMonitor.latest();
+        try {
+            if (binarySupported) {
+                MonitoringWireFormat.Writer writer = new MonitoringWireFormat.Writer(deviceId);
+                for (LocationOutbox.Fix fix : fixes) {
+                    writer.location(fix.latitude, fix.longitude, fix.accuracy, fix.time);
+                }
+                writeBattery(writer, battery);
+                int code = post("/api/location", MonitoringWireFormat.CONTENT_TYPE, writer.toByteArray());
+                if (code != HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                    return succeeded(code, fixes.size(), battery);
+                }
+                Log.d(TAG, "Server does not accept binary records, falling back to JSON");
+                binarySupported = false;
+            }
+
+            JSONObject body = locationsJson(fixes);
+            body.put("deviceId", deviceId);
+            putBattery(body, battery);
+            int code = post("/api/location", "application/json",
+                    body.toString().getBytes(StandardCharsets.UTF_8));
+            return succeeded(code, fixes.size(), battery);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Location upload failed", e);
+            return false;
+        }
+    }
+
+    // Upload geofence transitions, returning true once the server accepted them
+    boolean uploadGeofenceTransitions(List<GeofenceEngine.Transition> transitions) {
+        BatteryMonitor.Snapshot battery = BatteryMonitor.latest();
+        try {
+            if (binarySupported) {
+                MonitoringWireFormat.Writer writer = new MonitoringWireFormat.Writer(deviceId);
+                for (GeofenceEngine.Transition transition : transitions) {
+                    writer.geofence(transition.zoneId, transition.entered,
+                            transition.latitude, transition.longitude, transition.time);
+                }
+                writeBattery(writer, battery);
+                int code = post("/api/location", MonitoringWireFormat.CONTENT_TYPE, writer.toByteArray());
+                if (code != HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                    return succeeded(code, transitions.size(), battery);
+                }
+                Log.d(TAG, "Server does not accept binary records, falling back to JSON");
+                binarySupported = false;
+            }
+
+            JSONObject body = geofenceJson(transitions);
+            body.put("deviceId", deviceId);
+            putBattery(body, battery);
+            int code = post("/api/location", "application/json",
+                    body.toString().getBytes(StandardCharsets.UTF_8));
+            return succeeded(code, transitions.size(), battery);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Geofence upload failed", e);
+            return false;
+        }
+    }
+
+    // Upload app usage totals, returning true once the server accepted them.
+    // The snapshot reads the store in place, so the upload must finish
+    // before the store changes.
+    boolean uploadUsage(UsageAggregationStore.Snapshot snapshot) {
+        BatteryMonitor.Snapshot battery = BatteryMonitor.latest();
+        try {
+            if (binarySupported) {
+                MonitoringWireFormat.Writer writer = new MonitoringWireFormat.Writer(deviceId).usage(snapshot);
+                int records = writer.count();
+                writeBattery(writer, battery);
+                int code = post("/api/location", MonitoringWireFormat.CONTENT_TYPE, writer.toByteArray());
+                if (code != HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                    return succeeded(code, records, battery);
+                }
+                Log.d(TAG, "Server does not accept binary records, falling back to JSON");
+                binarySupported = false;
+            }
+
+            JSONObject body = usageJson(snapshot);
+            body.put("deviceId", deviceId);
+            putBattery(body, battery);
+            int code = post("/api/location", "application/json",
+                    body.toString().getBytes(StandardCharsets.UTF_8));
+            return succeeded(code, body.getJSONArray("usage").length(), battery);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Usage upload failed", e);
+            return false;
+        }
+    }
+
+    // Raise an SOS at the given position (NaN when unknown), returning true
+    // once the server accepted it. Sent as JSON: it is rare and must be
+    // understood by every server version.
+    boolean uploadSos(double latitude, double longitude, float accuracy, long time) {
+        BatteryMonitor.Snapshot battery = BatteryMonitor.latest();
+        try {
+            JSONObject body = sosJson(latitude, longitude, accuracy, time);
+            body.put("deviceId", deviceId);
+            putBattery(body, battery);
+            int code = post("/api/location", "application/json",
+                    body.toString().getBytes(StandardCharsets.UTF_8));
+            return succeeded(code, 1, battery);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "SOS upload failed", e);
+            return false;
+        }
+    }
+
+    // Report the device status, returning true once the server stored it.
+    // Only fields changed since the last acknowledged snapshot are sent; if
+    // the server has lost track of that snapshot it answers 409 Conflict and
+    // the retry carries every field.
+    boolean uploadStatus(BatteryMonitor.Snapshot battery, Map<String, Object> status, long time) {
+        try {
+            StatusSnapshotEncoder.Frame frame = statusEncoder.encode(status, time);
+            JSONObject body = new JSONObject();
+            body.put("statusDelta", frame.body);
+            int code = send("PUT", "/api/device/" + deviceId, "application/json",
+                    body.toString().getBytes(StandardCharsets.UTF_8));
+            return statusStored(code, frame, battery);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Status upload failed", e);
+            return false;
+        }
+    }
+
+    // Fixes as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload locationsUpload(final List<LocationOutbox.Fix> fixes) {
+        return new RecordUpload("locations", fixes.size()) {
+            @Override
+            public boolean send() {
+                return uploadLocations(fixes);
+            }
+
+            @Override
+            JSONObject fields() throws JSONException {
+                return locationsJson(fixes);
+            }
+        };
+    }
+
+    // Geofence transitions as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload geofenceUpload(final List<GeofenceEngine.Transition> transitions) {
+        return new RecordUpload("geofenceEvents", transitions.size()) {
+            @Override
+            public boolean send() {
+                return uploadGeofenceTransitions(transitions);
+            }
+
+            @Override
+            JSONObject fields() throws JSONException {
+                return geofenceJson(transitions);
+            }
+        };
+    }
+
+    // Usage totals as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload usageUpload(final UsageAggregationStore.Snapshot snapshot) {
+        return new RecordUpload("usage", countUsage(snapshot)) {
+            @Override
+            public boolean send() {
+                return uploadUsage(snapshot);
+            }
+
+            @Override
+            JSONObject fields() throws JSONException {
+                return usageJson(snapshot);
+            }
+        };
+    }
+
+    // An SOS as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload sosUpload(final double latitude, final double longitude, final float accuracy,
+            final long time) {
+        return new RecordUpload("sos", 1) {
+            @Override
+            public boolean send() {
+                return uploadSos(latitude, longitude, accuracy, time);
+            }
+
+            @Override
+            JSONObject fields() throws JSONException {
+                return sosJson(latitude, longitude, accuracy, time);
+            }
+        };
+    }
+
+    // The status as an upload that can also join a sync envelope
+    UploadScheduler.SyncUpload statusUpload(final BatteryMonitor.Snapshot battery, final Map<String, Object> status,
+            final long time) {
+        return new UploadScheduler.SyncUpload() {
+            // Frame of the latest attempt
+            private StatusSnapshotEncoder.Frame frame;
+
+            @Override
+            public boolean send() {
+                return uploadStatus(battery, status, time);
+            }
+
+            @Override
+            public String endpoint() {
+                return "/api/device";
+            }
+
+            @Override
+            public SyncClient.Record toRecord() throws JSONException {
+                frame = statusEncoder.encode(status, time);
+                JSONObject fields = new JSONObject();
+                fields.put("statusDelta", frame.body);
+                return new SyncClient.Record("status", fields);
+            }
+
+            @Override
+            public boolean onSynced(SyncClient.Record record) {
+                return statusStored(record.status, frame, battery);
+            }
+        };
+    }
+
+    // Whether a status upload is due: no upload was accepted within the
+    // window, the battery has changed since the last one reported it, or
+    // another status field changed
+    synchronized boolean needsHeartbeat(long window, BatteryMonitor.Snapshot battery, Map<String, Object> status) {
+        BatteryMonitor.Snapshot reported = lastReportedBattery;
+        boolean alive = lastContact != 0 && SystemClock.elapsedRealtime() - lastContact < window;
+        if (alive && reported != null && reported.charging == battery.charging && reported.low == battery.low
+                && Math.abs(reported.level - battery.level) < BATTERY_LEVEL_STEP
+                && !statusEncoder.hasChanges(status, STATUS_BATTERY_LEVEL)) {
+            heartbeatsSkipped++;
+            return false;
+        }
+        return true;
+    }
+
+    synchronized String getStats() {
+        return "bytesSent=" + bytesSent + " recordsSent=" + recordsSent + " binary=" + binarySupported
+                + " heartbeatsSent=" + heartbeatsSent + " heartbeatsSkipped=" + heartbeatsSkipped
+                + " status(" + statusEncoder.getStats() + ")";
+    }
+
+    // An upload sent as a record with the battery state piggybacked, counted
+    // like the equivalent single upload once accepted
+    private abstract class RecordUpload implements UploadScheduler.SyncUpload {
+        private final String type;
+        private final int records;
+        // Battery state carried by the latest attempt
+        private BatteryMonitor.Snapshot battery;
+
+        RecordUpload(String type, int records) {
+            this.type = type;
+            this.records = records;
+        }
+
+        // The record's fields, without the device id or battery state
+        abstract JSONObject fields() throws JSONException;
+
+        @Override
+        public String endpoint() {
+            return "/api/location";
+        }
+
+        @Override
+        public SyncClient.Record toRecord() throws JSONException {
+            battery = BatteryMonitor.latest();
+            JSONObject fields = fields();
+            putBattery(fields, battery);
+            return new SyncClient.Record(type, fields);
+        }
+
+        @Override
+        public boolean onSynced(SyncClient.Record record) {
+            return succeeded(record.status, records, battery);
+        }
+    }
+
+    private static JSONObject locationsJson(List<LocationOutbox.Fix> fixes) throws JSONException {
+        JSONArray locations = new JSONArray();
+        for (LocationOutbox.Fix fix : fixes) {
+            JSONObject location = new JSONObject();
+            location.put("latitude", fix.latitude);
+            location.put("longitude", fix.longitude);
+            location.put("accuracy", fix.accuracy);
+
+            JSONObject entry = new JSONObject();
+            entry.put("location", location);
+            entry.put("timestamp", fix.time);
+            locations.put(entry);
+        }
+        JSONObject body = new JSONObject();
+        body.put("locations", locations);
+        return body;
+    }
+
+    private static JSONObject geofenceJson(List<GeofenceEngine.Transition> transitions) throws JSONException {
+        JSONArray events = new JSONArray();
+        for (GeofenceEngine.Transition transition : transitions) {
+            JSONObject location = new JSONObject();
+            location.put("latitude", transition.latitude);
+            location.put("longitude", transition.longitude);
+
+            JSONObject event = new JSONObject();
+            event.put("zoneId", transition.zoneId);
+            event.put("event", transition.entered ? "enter" : "exit");
+            event.put("location", location);
+            event.put("timestamp", transition.time);
+            events.put(event);
+        }
+        JSONObject body = new JSONObject();
+        body.put("geofenceEvents", events);
+        return body;
+    }
+
+    // Every non-empty (bucket, package) cell, as the binary usage records carry them
+    private static JSONObject usageJson(UsageAggregationStore.Snapshot snapshot) throws JSONException {
+        JSONArray usage = new JSONArray();
+        long bucketStart = snapshot.firstBucketStart();
+        for (int bucket = 0; bucket < snapshot.bucketCount(); bucket++) {
+            for (int id = 0; id < snapshot.packageCount(); id++) {
+                long foreground = snapshot.foregroundMillis(bucket, id);
+                int launches = snapshot.launchCount(bucket, id);
+                if (foreground == 0 && launches == 0) {
+                    continue;
+                }
+                JSONObject cell = new JSONObject();
+                cell.put("timestamp", bucketStart + bucket * UsageAggregationStore.BUCKET_MILLIS);
+                cell.put("packageName", snapshot.packageName(id));
+                cell.put("foregroundTime", foreground);
+                cell.put("launchCount", launches);
+                usage.put(cell);
+            }
+        }
+        JSONObject body = new JSONObject();
+        body.put("usage", usage);
+        return body;
+    }
+
+    private static int countUsage(UsageAggregationStore.Snapshot snapshot) {
+        int cells = 0;
+        for (int bucket = 0; bucket < snapshot.bucketCount(); bucket++) {
+            for (int id = 0; id < snapshot.packageCount(); id++) {
+                if (snapshot.foregroundMillis(bucket, id) != 0 || snapshot.launchCount(bucket, id) != 0) {
+                    cells++;
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static JSONObject sosJson(double latitude, double longitude, float accuracy, long time)
+            throws JSONException {
+        JSONObject body = new JSONObject();
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            JSONObject location = new JSONObject();
+            location.put("latitude", latitude);
+            location.put("longitude", longitude);
+            location.put("accuracy", accuracy);
+            body.put("location", location);
+        }
+        body.put("timestamp", time);
+        body.put("sos", true);
+        return body;
+    }
+
+    // Piggyback the battery state on a binary upload
+    private static void writeBattery(MonitoringWireFormat.Writer writer, BatteryMonitor.Snapshot battery) {
+        if (battery != null && battery.level >= 0) {
+            writer.heartbeat(System.currentTimeMillis(), battery.level, battery.charging);
+        }
+    }
+
+    // Piggyback the battery state on a JSON upload
+    private static void putBattery(JSONObject body, BatteryMonitor.Snapshot battery) throws JSONException {
+        if (battery != null && battery.level >= 0) {
+            body.put(STATUS_BATTERY_LEVEL, battery.level);
+            body.put(STATUS_CHARGING, battery.charging);
+        }
+    }
+
+    // Settle a status frame by the server's answer
+    private boolean statusStored(int code, StatusSnapshotEncoder.Frame frame, BatteryMonitor.Snapshot battery) {
+        if (code == HTTP_CONFLICT) {
+            Log.d(TAG, "Server lost status version, sending a keyframe next");
+            statusEncoder.reject();
+            return false;
+        }
+        if (!succeeded(code, 1, battery)) {
+            return false;
+        }
+        statusEncoder.acknowledge(frame);
+        synchronized (this) {
+            heartbeatsSent++;
+        }
+        return true;
+    }
+
+    private boolean succeeded(int code, int records, BatteryMonitor.Snapshot battery) {
+        if (code < 200 || code >= 300) {
+            Log.w(TAG, "Upload rejected: HTTP " + code);
+            return false;
+        }
+        synchronized (this) {
+            recordsSent += records;
+            lastContact = SystemClock.elapsedRealtime();
+            if (battery != null) {
+                lastReportedBattery = battery;
+            }
+        }
+        if (battery != null && battery.level >= 0) {
+            // The server merged the piggybacked fields into the device status
+            statusEncoder.acknowledgeField(STATUS_BATTERY_LEVEL, battery.level);
+            statusEncoder.acknowledgeField(STATUS_CHARGING, battery.charging);
+        }
+        return true;
+    }
+
+    private int post(String path, String contentType, byte[] body) throws IOException {
+        return send("POST", path, contentType, body);
+    }
+
+    private int send(String method, String path, String contentType, byte[] body) throws IOException {
+        // Record uploads to /api/location may be gzipped; status updates are tiny
+        boolean gzip = path.startsWith("/api/location");
+        Request request = http.body(http.request(baseUrl + path, authToken), method, contentType, body, gzip)
+                .build();
+        try (Response response = http.execute(request)) {
+            synchronized (this) {
+                bytesSent += body.length;
+            }
+            return response.code();
+        }
+    }
+}
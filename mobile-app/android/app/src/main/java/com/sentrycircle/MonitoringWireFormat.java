@@ -0,0 +1,157 @@
+package com.sentrycircle;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding for monitoring records.
+ *
+ * Layout (all integers are unsigned LEB128 varints unless noted):
+ * <pre>
+ * 'S' 'C' version(byte)
+ * deviceIdLength deviceId(utf8)
+ * recordCount
+ * record*:
+ *   type(byte)
+ *   LOCATION:  zigzag dTime(ms) zigzag dLatitude zigzag dLongitude accuracy(dm)
+ *   HEARTBEAT: zigzag dTime(ms) batteryLevel(byte) flags(byte, bit0 = charging)
+ *   USAGE:     zigzag dTime(ms) packageLength package(utf8) foregroundMs launchCount
+ *   GEOFENCE:  zigzag dTime(ms) zigzag dLatitude zigzag dLongitude
+ *              zoneIdLength zoneId(utf8) flags(byte, bit0 = entered)
+ * </pre>
+ * Coordinates are fixed point at 1e-7 degrees. Times and coordinates are
+ * deltas from the previous record of the stream (times across all types,
+ * coordinates across location and geofence records), starting from zero.
+ */
+final class MonitoringWireFormat {
+    static final String CONTENT_TYPE = "application/x-sentrycircle-records";
+    static final int VERSION = 1;
+
+    static final int TYPE_LOCATION = 1;
+    static final int TYPE_HEARTBEAT = 2;
+    static final int TYPE_USAGE = 3;
+    static final int TYPE_GEOFENCE = 4;
+
+    static final double COORDINATE_SCALE = 1e7;
+    static final int FLAG_CHARGING = 1;
+    static final int FLAG_ENTERED = 1;
+
+    private MonitoringWireFormat() {
+    }
+
+    // Accumulates records for one request body
+    static final class Writer {
+        private final String deviceId;
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream(512);
+        private int count;
+        private long previousTime;
+        private long previousLatitude;
+        private long previousLongitude;
+
+        Writer(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        Writer location(double latitude, double longitude, float accuracy, long time) {
+            records.write(TYPE_LOCATION);
+            writeTime(time);
+            writeCoordinates(latitude, longitude);
+            writeVarint(records, Math.max(0, Math.round(accuracy * 10)));
+            count++;
+            return this;
+        }
+
+        Writer geofence(String zoneId, boolean entered, double latitude, double longitude, long time) {
+            records.write(TYPE_GEOFENCE);
+            writeTime(time);
+            writeCoordinates(latitude, longitude);
+            writeString(records, zoneId);
+            records.write(entered ? FLAG_ENTERED : 0);
+            count++;
+            return this;
+        }
+
+        Writer heartbeat(long time, int batteryLevel, boolean charging) {
+            records.write(TYPE_HEARTBEAT);
+            writeTime(time);
+            records.write(Math.max(0, Math.min(100, batteryLevel)));
+            records.write(charging ? FLAG_CHARGING : 0);
+            count++;
+            return this;
+        }
+
+        // Encode every non-empty (bucket, package) cell of a usage snapshot
+        Writer usage(UsageAggregationStore.Snapshot snapshot) {
+            long bucketStart = snapshot.firstBucketStart();
+            for (int bucket = 0; bucket < snapshot.bucketCount(); bucket++) {
+                for (int id = 0; id < snapshot.packageCount(); id++) {
+                    long foreground = snapshot.foregroundMillis(bucket, id);
+                    int launches = snapshot.launchCount(bucket, id);
+                    if (foreground == 0 && launches == 0) {
+                        continue;
+                    }
+                    records.write(TYPE_USAGE);
+                    writeTime(bucketStart + bucket * UsageAggregationStore.BUCKET_MILLIS);
+                    writeString(records, snapshot.packageName(id));
+                    writeVarint(records, foreground);
+                    writeVarint(records, launches);
+                    count++;
+                }
+            }
+            return this;
+        }
+
+        int count() {
+            return count;
+        }
+
+        // Encoded size of the records so far, without the header
+        int size() {
+            return records.size();
+        }
+
+        byte[] toByteArray() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(records.size() + 64);
+            out.write('S');
+            out.write('C');
+            out.write(VERSION);
+            writeString(out, deviceId);
+            writeVarint(out, count);
+            byte[] body = records.toByteArray();
+            out.write(body, 0, body.length);
+            return out.toByteArray();
+        }
+
+        private void writeTime(long time) {
+            writeZigZag(records, time - previousTime);
+            previousTime = time;
+        }
+
+        private void writeCoordinates(double latitude, double longitude) {
+            long fixedLatitude = Math.round(latitude * COORDINATE_SCALE);
+            long fixedLongitude = Math.round(longitude * COORDINATE_SCALE);
+            writeZigZag(records, fixedLatitude - previousLatitude);
+            writeZigZag(records, fixedLongitude - previousLongitude);
+            previousLatitude = fixedLatitude;
+            previousLongitude = fixedLongitude;
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
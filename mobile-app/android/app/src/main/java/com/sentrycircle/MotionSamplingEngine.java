@@ -0,0 +1,151 @@
+package com.sentrycircle;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Picks location sampling parameters from the device's inferred motion.
+ *
+ * Motion is classified from the speed of each fix (reported or derived from
+ * the previous fix). A new state only takes effect after it has been observed
+ * on consecutive fixes, so a single noisy fix does not re-issue the request.
+ *
+ * In batched mode the request also carries a max wait time, letting the fused
+ * provider buffer fixes in low-power hardware and deliver them in bursts.
+ */
+class MotionSamplingEngine {
+    // Below this speed the device is considered stationary (m/s)
+    private static final float STATIONARY_MAX_SPEED = 0.5f;
+    // Below this speed the device is considered walking (m/s)
+    private static final float WALKING_MAX_SPEED = 3.0f;
+    // Number of consecutive agreeing fixes required to change state
+    private static final int TRANSITION_CONFIRMATIONS = 2;
+
+    enum MotionState {
+        STATIONARY(30 * 60 * 1000, 2 * 60 * 60 * 1000, LocationRequest.PRIORITY_LOW_POWER, 100f),
+        WALKING(5 * 60 * 1000, 30 * 60 * 1000, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, 25f),
+        IN_VEHICLE(60 * 1000, 10 * 60 * 1000, LocationRequest.PRIORITY_HIGH_ACCURACY, 100f);
+
+        final long interval;
+        final long maxWaitTime;
+        final int priority;
+        final float smallestDisplacement;
+
+        MotionState(long interval, long maxWaitTime, int priority, float smallestDisplacement) {
+            this.interval = interval;
+            this.maxWaitTime = maxWaitTime;
+            this.priority = priority;
+            this.smallestDisplacement = smallestDisplacement;
+        }
+    }
+
+    private final boolean batchedDelivery;
+
+    private PowerGovernor.Profile powerProfile = PowerGovernor.Profile.NORMAL;
+    private long maxWaitCap;
+    private MotionState state = MotionState.WALKING;
+    private MotionState candidate = MotionState.WALKING;
+    private int candidateCount;
+
+    private boolean hasLastFix;
+    private double lastLatitude;
+    private double lastLongitude;
+    private long lastTime;
+
+    MotionSamplingEngine(boolean batchedDelivery) {
+        this.batchedDelivery = batchedDelivery;
+    }
+
+    MotionState getState() {
+        return state;
+    }
+
+    // Scale sampling to the power profile; takes effect with the next request
+    void setPowerProfile(PowerGovernor.Profile profile) {
+        powerProfile = profile;
+    }
+
+    // Bound how long fixes may be batched (0 for no bound); takes effect with
+    // the next request
+    void setMaxWaitCap(long cap) {
+        maxWaitCap = cap;
+    }
+
+    // Build the location request for the current state and power profile
+    LocationRequest createLocationRequest() {
+        long interval = powerProfile.scale(state.interval);
+        long maxWaitTime = powerProfile.scale(state.maxWaitTime);
+        if (maxWaitCap > 0) {
+            maxWaitTime = Math.min(maxWaitTime, maxWaitCap);
+        }
+        return LocationRequest.create()
+                .setPriority(powerProfile.capPriority(state.priority))
+                .setInterval(interval)
+                .setFastestInterval(interval / 2)
+                .setSmallestDisplacement(state.smallestDisplacement)
+                .setMaxWaitTime(batchedDelivery ? maxWaitTime : 0);
+    }
+
+    // Feed a fix; returns true when the motion state changed
+    boolean onFix(double latitude, double longitude, long time, boolean hasSpeed, float speed) {
+        float observedSpeed = -1;
+        if (hasSpeed) {
+            observedSpeed = speed;
+        } else if (hasLastFix && time > lastTime) {
+            double meters = GeoMath.distanceMeters(lastLatitude, lastLongitude, latitude, longitude);
+            observedSpeed = (float) (meters * 1000 / (time - lastTime));
+        }
+
+        hasLastFix = true;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastTime = time;
+
+        if (observedSpeed < 0) {
+            return false;
+        }
+        return observe(classify(observedSpeed));
+    }
+
+    // Adopt a state inferred from other evidence (e.g. leaving a known
+    // Wi-Fi place); returns true when the motion state changed
+    boolean assume(MotionState assumed) {
+        candidate = assumed;
+        candidateCount = 0;
+        if (assumed == state) {
+            return false;
+        }
+        state = assumed;
+        return true;
+    }
+
+    private boolean observe(MotionState observed) {
+        if (observed == state) {
+            candidate = state;
+            candidateCount = 0;
+            return false;
+        }
+
+        if (observed != candidate) {
+            candidate = observed;
+            candidateCount = 0;
+        }
+        candidateCount++;
+
+        // Speeding up into a vehicle is acted on immediately
+        if (candidateCount >= TRANSITION_CONFIRMATIONS || observed == MotionState.IN_VEHICLE) {
+            state = observed;
+            candidateCount = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private static MotionState classify(float speed) {
+        if (speed < STATIONARY_MAX_SPEED) {
+            return MotionState.STATIONARY;
+        } else if (speed < WALKING_MAX_SPEED) {
+            return MotionState.WALKING;
+        }
+        return MotionState.IN_VEHICLE;
+    }
+}
@@ -0,0 +1,78 @@
+package com.sentrycircle;
+
+import java.util.Arrays;
+
+/**
+ * Interns package names to dense int ids.
+ *
+ * Open addressing over parallel arrays keeps lookups free of boxing and
+ * allocation once a package has been seen.
+ */
+final class PackageDictionary {
+    private String[] slots;
+    private int[] slotIds;
+    private String[] names;
+    private int size;
+
+    PackageDictionary(int expectedPackages) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedPackages * 2) - 1) << 1;
+        slots = new String[capacity];
+        slotIds = new int[capacity];
+        names = new String[expectedPackages];
+    }
+
+    // Id for a package name, assigning the next id on first sight
+    int intern(String name) {
+        int mask = slots.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        while (slots[slot] != null) {
+            if (slots[slot].equals(name)) {
+                return slotIds[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        slots[slot] = name;
+        slotIds[slot] = id;
+
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash() {
+        String[] oldSlots = slots;
+        int[] oldIds = slotIds;
+        slots = new String[oldSlots.length * 2];
+        slotIds = new int[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != null) {
+                int slot = mix(oldSlots[i].hashCode()) & mask;
+                while (slots[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                slotIds[slot] = oldIds[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,233 @@
+package com.sentrycircle;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Picks how hard monitoring may work from the battery and thermal state.
+ *
+ * Each {@link Profile} scales every periodic cadence by the same factor and
+ * caps the location accuracy, so all subsystems back off together. The
+ * profile follows the battery level, steps down one further when the
+ * observed drain would empty the battery within {@link #RUNTIME_TARGET},
+ * and is held down while the device runs hot. Thresholds have hysteresis,
+ * so a level hovering at a boundary does not flip the profile back and forth.
+ *
+ * Changes are reported to the listener, which applies them live.
+ */
+class PowerGovernor {
+    private static final String TAG = "PowerGovernor";
+    private static final long HOUR = 60 * 60 * 1000;
+    // Battery levels (%) at or below which the low and critical profiles apply
+    private static final int LOW_LEVEL = 30;
+    private static final int CRITICAL_LEVEL = 15;
+    // Leaving a profile needs the level this far (%) above its threshold
+    private static final int LEVEL_HYSTERESIS = 5;
+    // Step down a profile when the battery would run out sooner than this
+    private static final long RUNTIME_TARGET = 4 * HOUR;
+    // Weight of the latest drain measurement in the smoothed rate
+    private static final double DRAIN_SMOOTHING = 0.3;
+
+    enum Profile {
+        // Power is free: sample more often at full accuracy
+        CHARGING(0.5, LocationRequest.PRIORITY_HIGH_ACCURACY),
+        NORMAL(1, LocationRequest.PRIORITY_HIGH_ACCURACY),
+        LOW(2, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY),
+        // Keep the phone alive: rare check-ins from cell and Wi-Fi positioning
+        CRITICAL(4, LocationRequest.PRIORITY_LOW_POWER);
+
+        final double cadenceScale;
+        // Most power-hungry location priority allowed
+        final int priorityCap;
+
+        Profile(double cadenceScale, int priorityCap) {
+            this.cadenceScale = cadenceScale;
+            this.priorityCap = priorityCap;
+        }
+
+        // Interval (or flex) for a task with the given normal cadence
+        long scale(long interval) {
+            return (long) (interval * cadenceScale);
+        }
+
+        // Location priority to request in place of the given one
+        int capPriority(int priority) {
+            // Higher priority constants use less power
+            return Math.max(priority, priorityCap);
+        }
+    }
+
+    interface Listener {
+        // Called on the governor's handler thread
+        void onProfileChanged(Profile profile);
+    }
+
+    private final PowerManager powerManager;
+    private Handler handler;
+    private Listener listener;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+    private Profile profile = Profile.NORMAL;
+    // Profile the battery level alone calls for, before trend and heat
+    private Profile levelProfile = Profile.NORMAL;
+    private BatteryMonitor.Snapshot battery;
+    private int thermalStatus;
+    // Smoothed drain in % per hour, 0 until measured
+    private double drainPerHour;
+    private int lastDropLevel = -1;
+    private long lastDropTime;
+    private long profileChanges;
+
+    PowerGovernor(PowerManager powerManager) {
+        this.powerManager = powerManager;
+    }
+
+    // Start following the thermal state; callbacks run on the given handler
+    void start(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            synchronized (this) {
+                thermalStatus = powerManager.getCurrentThermalStatus();
+            }
+            thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(final int status) {
+                    PowerGovernor.this.handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onThermalStatus(status);
+                        }
+                    });
+                }
+            };
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+    }
+
+    void stop() {
+        if (thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+        listener = null;
+    }
+
+    synchronized Profile getProfile() {
+        return profile;
+    }
+
+    // Feed a new battery snapshot
+    void onBattery(BatteryMonitor.Snapshot snapshot) {
+        synchronized (this) {
+            trackDrain(snapshot);
+            battery = snapshot;
+        }
+        reevaluate();
+    }
+
+    synchronized String getStats() {
+        return "profile=" + profile + " drainPerHour=" + Math.round(drainPerHour * 10) / 10.0
+                + " thermal=" + thermalStatus + " changes=" + profileChanges;
+    }
+
+    private void onThermalStatus(int status) {
+        synchronized (this) {
+            thermalStatus = status;
+        }
+        reevaluate();
+    }
+
+    private void reevaluate() {
+        Profile next;
+        synchronized (this) {
+            next = decide();
+            if (next == profile) {
+                return;
+            }
+            Log.d(TAG, "Power profile " + profile + " -> " + next + " at "
+                    + (battery != null ? battery.level : -1) + "%, " + getStats());
+            profile = next;
+            profileChanges++;
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.onProfileChanged(next);
+        }
+    }
+
+    private Profile decide() {
+        if (battery == null || battery.level < 0) {
+            return thermalFloor(Profile.NORMAL);
+        }
+        if (battery.charging) {
+            return thermalFloor(Profile.CHARGING);
+        }
+
+        int level = battery.level;
+        if (level <= CRITICAL_LEVEL + margin(Profile.CRITICAL)) {
+            levelProfile = Profile.CRITICAL;
+        } else if (level <= LOW_LEVEL + margin(Profile.LOW)) {
+            levelProfile = Profile.LOW;
+        } else {
+            levelProfile = Profile.NORMAL;
+        }
+        Profile next = levelProfile;
+
+        // Draining too fast to last: back off one more step
+        if (drainPerHour > 0 && level * HOUR / drainPerHour < RUNTIME_TARGET
+                && next != Profile.CRITICAL) {
+            next = Profile.values()[next.ordinal() + 1];
+        }
+        return thermalFloor(next);
+    }
+
+    // Hysteresis: thresholds of the current level tier or below are raised
+    private int margin(Profile tier) {
+        return levelProfile.ordinal() >= tier.ordinal() ? LEVEL_HYSTERESIS : 0;
+    }
+
+    // A hot device is held to a lower profile whatever the battery says
+    private Profile thermalFloor(Profile candidate) {
+        Profile floor;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            floor = Profile.CRITICAL;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            floor = Profile.LOW;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            floor = Profile.NORMAL;
+        } else {
+            return candidate;
+        }
+        return candidate.ordinal() >= floor.ordinal() ? candidate : floor;
+    }
+
+    // Measure the time between level drops, smoothed, while on battery
+    private void trackDrain(BatteryMonitor.Snapshot snapshot) {
+        if (snapshot.charging || snapshot.level < 0) {
+            lastDropLevel = -1;
+            return;
+        }
+        if (lastDropLevel < 0 || snapshot.level > lastDropLevel) {
+            // Time spent at this level so far is unknown: measure from the next drop
+            lastDropLevel = snapshot.level;
+            lastDropTime = 0;
+            return;
+        }
+        if (snapshot.level == lastDropLevel) {
+            return;
+        }
+        long elapsed = snapshot.elapsedTime - lastDropTime;
+        if (lastDropTime != 0 && elapsed > 0) {
+            double rate = (lastDropLevel - snapshot.level) * (double) HOUR / elapsed;
+            drainPerHour = drainPerHour == 0 ? rate
+                    : drainPerHour + (rate - drainPerHour) * DRAIN_SMOOTHING;
+        }
+        lastDropLevel = snapshot.level;
+        lastDropTime = snapshot.elapsedTime;
+    }
+}
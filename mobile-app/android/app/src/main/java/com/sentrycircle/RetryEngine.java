@@ -0,0 +1,217 @@
+package com.sentrycircle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Retry discipline shared by everything the service sends.
+ *
+ * Retry delays use decorrelated jitter: each delay is drawn at random
+ * between the minimum and three times the previous delay, capped, so
+ * devices that failed together do not retry in lockstep.
+ *
+ * Each endpoint has a circuit breaker. After {@link #BREAKER_THRESHOLD}
+ * consecutive failures it opens and requests to the endpoint wait out a
+ * cool-down; then a single probe is let through, which closes the breaker
+ * or reopens it for twice as long. Retries (not first attempts) also draw
+ * on an hourly budget, so a device in a dead zone cannot spend its battery
+ * retrying. When connectivity returns, open breakers let a probe through
+ * right away.
+ *
+ * {@link MonitoringHttpClient} reports the outcome of every request.
+ * Transport errors, 5xx and 429 count as failures; other answers mean the
+ * endpoint is healthy, even if it refused the request.
+ */
+class RetryEngine {
+    private static final String TAG = "RetryEngine";
+    private static final long HOUR = 60 * 60 * 1000;
+    // Consecutive failures that open a breaker
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long MIN_OPEN = 30 * 1000; // 30 seconds
+    private static final long MAX_OPEN = 30 * 60 * 1000; // 30 minutes
+    // A probe whose outcome never arrived no longer blocks the endpoint after this
+    private static final long PROBE_TIMEOUT = 60 * 1000;
+    // Retries allowed per hour across all endpoints
+    private static final int RETRY_BUDGET = 120;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final class Breaker {
+        State state = State.CLOSED;
+        int failures;
+        long openDuration = MIN_OPEN;
+        long openUntil;
+        // When the half-open probe was let through, 0 if none is out
+        long probeSince;
+        long openedAt;
+        long timeOpen;
+        long opens;
+    }
+
+    private final Map<String, Breaker> breakers = new LinkedHashMap<>();
+    private final ArrayDeque<Long> recentRetries = new ArrayDeque<>();
+    private final Random random = new Random();
+
+    private long retries;
+    private long budgetExhaustions;
+    private long fastResumes;
+
+    // Endpoint of a request path: its first two segments, e.g. /api/location
+    static String endpointOf(String path) {
+        int end = path.indexOf('/', 1);
+        end = end < 0 ? -1 : path.indexOf('/', end + 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    // Delay before the next retry, given the previous delay
+    synchronized long nextDelay(long minDelay, long maxDelay, long previousDelay) {
+        long upper = Math.min(maxDelay, Math.max(minDelay, previousDelay * 3));
+        return minDelay + (long) (random.nextDouble() * (upper - minDelay));
+    }
+
+    // 0 if a request to the endpoint may go now, otherwise the elapsed
+    // realtime at which its breaker next lets a probe through
+    synchronized long blockedUntil(String endpoint, long now) {
+        Breaker breaker = breakers.get(endpoint);
+        if (breaker == null || breaker.state == State.CLOSED) {
+            return 0;
+        }
+        if (breaker.state == State.OPEN) {
+            return now >= breaker.openUntil ? 0 : breaker.openUntil;
+        }
+        long probeExpires = breaker.probeSince + PROBE_TIMEOUT;
+        return breaker.probeSince == 0 || now >= probeExpires ? 0 : probeExpires;
+    }
+
+    // Claim a request to the endpoint. Returns false while its breaker is open
+    // or its probe is out; past the cool-down, the caller becomes the probe.
+    synchronized boolean acquire(String endpoint, long now) {
+        if (blockedUntil(endpoint, now) != 0) {
+            return false;
+        }
+        Breaker breaker = breakers.get(endpoint);
+        if (breaker != null && breaker.state != State.CLOSED) {
+            breaker.state = State.HALF_OPEN;
+            breaker.probeSince = now;
+        }
+        return true;
+    }
+
+    // Record the HTTP status of a request (0 for a transport error)
+    void onResult(String endpoint, int code) {
+        if (code == 0 || code == HTTP_TOO_MANY_REQUESTS || code >= HTTP_SERVER_ERROR) {
+            onFailure(endpoint);
+        } else {
+            onSuccess(endpoint);
+        }
+    }
+
+    // 0 if a retry may be spent now, otherwise the elapsed realtime at which
+    // the hourly budget frees one
+    synchronized long retryAvailableAt(long now) {
+        pruneRetries(now);
+        return recentRetries.size() < RETRY_BUDGET ? 0 : recentRetries.peekFirst() + HOUR;
+    }
+
+    // Spend one retry from the hourly budget
+    synchronized void spendRetry(long now) {
+        retries++;
+        recentRetries.addLast(now);
+        if (recentRetries.size() == RETRY_BUDGET) {
+            budgetExhaustions++;
+            Log.w(TAG, "Hourly retry budget of " + RETRY_BUDGET + " spent");
+        }
+    }
+
+    // Connectivity came back: failures seen while offline say nothing about
+    // the endpoints, so let every open breaker probe at once
+    synchronized void onConnectivityRestored() {
+        long now = SystemClock.elapsedRealtime();
+        for (Breaker breaker : breakers.values()) {
+            if (breaker.state == State.OPEN) {
+                breaker.openUntil = now;
+                fastResumes++;
+            }
+            breaker.failures = 0;
+        }
+    }
+
+    synchronized String getStats() {
+        long now = SystemClock.elapsedRealtime();
+        pruneRetries(now);
+        StringBuilder summary = new StringBuilder("retries=").append(retries)
+                .append(" retriesLastHour=").append(recentRetries.size())
+                .append(" budget=").append(RETRY_BUDGET)
+                .append(" budgetExhaustions=").append(budgetExhaustions)
+                .append(" fastResumes=").append(fastResumes);
+        for (Map.Entry<String, Breaker> entry : breakers.entrySet()) {
+            Breaker breaker = entry.getValue();
+            long timeOpen = breaker.timeOpen + (breaker.state != State.CLOSED ? now - breaker.openedAt : 0);
+            summary.append("; ").append(entry.getKey()).append(": ").append(breaker.state)
+                    .append(" failures=").append(breaker.failures)
+                    .append(" opens=").append(breaker.opens)
+                    .append(" timeOpenMs=").append(timeOpen);
+        }
+        return summary.toString();
+    }
+
+    private synchronized void onSuccess(String endpoint) {
+        Breaker breaker = breakers.get(endpoint);
+        if (breaker == null) {
+            breakers.put(endpoint, new Breaker());
+            return;
+        }
+        if (breaker.state != State.CLOSED) {
+            Log.d(TAG, "Breaker for " + endpoint + " closed");
+            breaker.timeOpen += SystemClock.elapsedRealtime() - breaker.openedAt;
+        }
+        breaker.state = State.CLOSED;
+        breaker.failures = 0;
+        breaker.openDuration = MIN_OPEN;
+        breaker.probeSince = 0;
+    }
+
+    private synchronized void onFailure(String endpoint) {
+        Breaker breaker = breakers.get(endpoint);
+        if (breaker == null) {
+            breaker = new Breaker();
+            breakers.put(endpoint, breaker);
+        }
+        long now = SystemClock.elapsedRealtime();
+        breaker.failures++;
+        if (breaker.state == State.HALF_OPEN) {
+            // The probe failed: stay open for longer
+            open(endpoint, breaker, Math.min(breaker.openDuration * 2, MAX_OPEN), now);
+        } else if (breaker.state == State.CLOSED && breaker.failures >= BREAKER_THRESHOLD) {
+            breaker.openedAt = now;
+            open(endpoint, breaker, MIN_OPEN, now);
+        }
+    }
+
+    private void open(String endpoint, Breaker breaker, long duration, long now) {
+        breaker.state = State.OPEN;
+        breaker.openDuration = duration;
+        breaker.openUntil = now + duration;
+        breaker.probeSince = 0;
+        breaker.opens++;
+        Log.w(TAG, "Breaker for " + endpoint + " open for " + duration + " ms after "
+                + breaker.failures + " failures");
+    }
+
+    private void pruneRetries(long now) {
+        while (!recentRetries.isEmpty() && now - recentRetries.peekFirst() > HOUR) {
+            recentRetries.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.sentrycircle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the device status as versioned snapshots.
+ *
+ * The encoder remembers the last status the server acknowledged and its
+ * version. A new snapshot carries only the fields that differ from it (and
+ * the names of fields that went away), tagged with the acknowledged version
+ * it applies on top of. The server rejects a delta whose base version it
+ * does not hold; the next snapshot is then a keyframe carrying every field.
+ * A keyframe is also sent every {@link #KEYFRAME_INTERVAL} snapshots, so a
+ * server-side copy that drifted is repaired without a rejection.
+ *
+ * Status values must be strings, booleans or boxed numbers.
+ */
+class StatusSnapshotEncoder {
+    // Send every field at least once per this many snapshots
+    private static final int KEYFRAME_INTERVAL = 12;
+
+    static final class Frame {
+        final long version;
+        final boolean keyframe;
+        final JSONObject body;
+        final Map<String, Object> values;
+
+        Frame(long version, boolean keyframe, JSONObject body, Map<String, Object> values) {
+            this.version = version;
+            this.keyframe = keyframe;
+            this.body = body;
+            this.values = values;
+        }
+    }
+
+    // Status the server holds as of ackedVersion; null until a keyframe is acknowledged
+    private Map<String, Object> acked;
+    private long ackedVersion;
+    private long nextVersion = 1;
+    private int sinceKeyframe;
+
+    private long keyframes;
+    private long deltas;
+    private long rejections;
+
+    // Encode the given status as the next snapshot
+    synchronized Frame encode(Map<String, Object> status, long time) throws JSONException {
+        boolean keyframe = acked == null || sinceKeyframe >= KEYFRAME_INTERVAL;
+        long version = nextVersion++;
+
+        JSONObject fields = new JSONObject();
+        JSONArray removed = new JSONArray();
+        for (Map.Entry<String, Object> entry : status.entrySet()) {
+            if (keyframe || !entry.getValue().equals(acked.get(entry.getKey()))) {
+                fields.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!keyframe) {
+            for (String name : acked.keySet()) {
+                if (!status.containsKey(name)) {
+                    removed.put(name);
+                }
+            }
+        }
+
+        JSONObject body = new JSONObject();
+        body.put("version", version);
+        if (keyframe) {
+            body.put("keyframe", true);
+        } else {
+            body.put("baseVersion", ackedVersion);
+        }
+        body.put("timestamp", time);
+        body.put("fields", fields);
+        if (removed.length() > 0) {
+            body.put("removed", removed);
+        }
+        return new Frame(version, keyframe, body, new HashMap<>(status));
+    }
+
+    // The server applied the frame: later deltas build on it
+    synchronized void acknowledge(Frame frame) {
+        acked = frame.values;
+        ackedVersion = frame.version;
+        if (frame.keyframe) {
+            keyframes++;
+            sinceKeyframe = 0;
+        } else {
+            deltas++;
+            sinceKeyframe++;
+        }
+    }
+
+    // The server does not hold the frame's base version: send a keyframe next
+    synchronized void reject() {
+        rejections++;
+        acked = null;
+    }
+
+    // The server learned a field's value some other way (e.g. piggybacked on
+    // another upload), so it need not be sent again
+    synchronized void acknowledgeField(String name, Object value) {
+        if (acked != null) {
+            acked.put(name, value);
+        }
+    }
+
+    // Whether the status differs from what the server holds, not counting
+    // the named field
+    synchronized boolean hasChanges(Map<String, Object> status, String ignored) {
+        if (acked == null) {
+            return true;
+        }
+        for (Map.Entry<String, Object> entry : status.entrySet()) {
+            if (!entry.getKey().equals(ignored) && !entry.getValue().equals(acked.get(entry.getKey()))) {
+                return true;
+            }
+        }
+        for (String name : acked.keySet()) {
+            if (!status.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized String getStats() {
+        return "version=" + ackedVersion + " keyframes=" + keyframes + " deltas=" + deltas
+                + " rejections=" + rejections;
+    }
+}
@@ -0,0 +1,140 @@
+package com.sentrycircle;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Sends several uploads as typed records of one request to /api/sync.
+ *
+ * Everything due in a wake window (a location batch, geofence transitions,
+ * the status, command acknowledgements) then costs one request instead of
+ * one each. The server applies every record on its own and answers with a
+ * status per record, so a rejected record is retried alone while the rest
+ * are done. A server without the endpoint (404) is remembered, and uploads
+ * go out one by one again.
+ */
+class SyncClient {
+    static final String ENDPOINT = "/api/sync";
+    // Most records the server takes in one envelope
+    static final int MAX_RECORDS = 50;
+
+    private static final String TAG = "SyncClient";
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NOT_FOUND = 404;
+
+    static final class Record {
+        final String type;
+        final JSONObject fields;
+        // HTTP status the server gave this record, 0 until answered
+        int status;
+
+        Record(String type, JSONObject fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    private final String baseUrl;
+    private final String deviceId;
+    private final String authToken;
+    private final MonitoringHttpClient http = MonitoringHttpClient.get();
+
+    private volatile boolean supported = true;
+    private long envelopes;
+    private long records;
+    private long rejectedRecords;
+
+    SyncClient(String baseUrl, String deviceId, String authToken) {
+        this.baseUrl = baseUrl;
+        this.deviceId = deviceId;
+        this.authToken = authToken;
+    }
+
+    // Whether the server takes envelopes, as far as we know
+    boolean isSupported() {
+        return supported;
+    }
+
+    // Send the records in one envelope. Returns true once the server answered
+    // for each record (see Record.status); false if the request failed as a whole.
+    boolean sync(List<Record> batch) {
+        try {
+            JSONArray entries = new JSONArray();
+            for (int i = 0; i < batch.size(); i++) {
+                Record record = batch.get(i);
+                record.fields.put("id", String.valueOf(i));
+                record.fields.put("type", record.type);
+                entries.put(record.fields);
+            }
+            JSONObject body = new JSONObject();
+            body.put("deviceId", deviceId);
+            body.put("records", entries);
+
+            Request request = http.body(http.request(baseUrl + ENDPOINT, authToken), "POST",
+                    "application/json", body.toString().getBytes(StandardCharsets.UTF_8), true).build();
+            JSONObject answer;
+            try (Response response = http.execute(request)) {
+                if (response.code() == HTTP_NOT_FOUND) {
+                    Log.d(TAG, "Server does not accept sync envelopes, sending uploads separately");
+                    supported = false;
+                    return false;
+                }
+                if (response.code() != HTTP_OK) {
+                    Log.w(TAG, "Sync rejected: HTTP " + response.code());
+                    return false;
+                }
+                ResponseBody responseBody = response.body();
+                answer = new JSONObject(responseBody != null ? responseBody.string() : "{}");
+            }
+
+            JSONArray results = answer.optJSONArray("results");
+            for (int i = 0; results != null && i < results.length(); i++) {
+                JSONObject result = results.optJSONObject(i);
+                int index = result != null ? parseIndex(result.optString("id")) : -1;
+                if (index >= 0 && index < batch.size()) {
+                    batch.get(index).status = result.optInt("status");
+                }
+            }
+
+            int rejected = 0;
+            for (Record record : batch) {
+                if (record.status < 200 || record.status >= 300) {
+                    rejected++;
+                }
+            }
+            synchronized (this) {
+                envelopes++;
+                records += batch.size();
+                rejectedRecords += rejected;
+            }
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Sync failed", e);
+            return false;
+        }
+    }
+
+    synchronized String getStats() {
+        return "envelopes=" + envelopes + " records=" + records + " rejectedRecords=" + rejectedRecords
+                + " supported=" + supported;
+    }
+
+    private static int parseIndex(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
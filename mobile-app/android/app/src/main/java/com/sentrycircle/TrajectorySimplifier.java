@@ -0,0 +1,143 @@
+package com.sentrycircle;
+
+import java.util.List;
+
+/**
+ * Streaming trajectory simplifier for location fixes.
+ *
+ * Uses an opening window with synchronized Euclidean distance: a fix is
+ * dropped while its position is within the error bound of where constant
+ * velocity travel between the last emitted vertex and the newest fix would
+ * put it at that time. In other words, a fix is only sent when dead
+ * reckoning along the uploaded polyline would be off by more than the bound.
+ * Every dropped fix is therefore within the bound of the uploaded path.
+ *
+ * The newest fix is held back until a later fix or {@link #drain} decides
+ * it is a vertex. The window buffer is preallocated; adding fixes does not
+ * allocate.
+ */
+class TrajectorySimplifier {
+    // Force a vertex after this many buffered fixes to bound per-fix work
+    private static final int MAX_WINDOW = 64;
+
+    private final double errorBoundMeters;
+    private final long maxVertexInterval;
+
+    // Last emitted vertex
+    private boolean hasAnchor;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private long anchorTime;
+
+    // Fixes received since the anchor, oldest first
+    private final double[] latitudes = new double[MAX_WINDOW];
+    private final double[] longitudes = new double[MAX_WINDOW];
+    private final float[] accuracies = new float[MAX_WINDOW];
+    private final long[] times = new long[MAX_WINDOW];
+    private int size;
+
+    private long fixesIn;
+    private long verticesOut;
+    private double maxErrorMeters;
+
+    TrajectorySimplifier(double errorBoundMeters, long maxVertexInterval) {
+        this.errorBoundMeters = errorBoundMeters;
+        this.maxVertexInterval = maxVertexInterval;
+    }
+
+    // Feed a fix; vertices that became final are appended to out
+    void add(double latitude, double longitude, float accuracy, long time, List<LocationOutbox.Fix> out) {
+        fixesIn++;
+        if (!hasAnchor) {
+            emit(latitude, longitude, accuracy, time, out);
+            return;
+        }
+        if (time <= anchorTime || (size > 0 && time <= times[size - 1])) {
+            // Out of order or duplicate fix
+            return;
+        }
+
+        // A buffered fix is a vertex if the segment to the new fix no longer
+        // predicts the intermediate fixes within the bound
+        boolean breaksWindow = size == MAX_WINDOW
+                || time - anchorTime > maxVertexInterval
+                || maxDeviation(latitude, longitude, time, size) > errorBoundMeters;
+        if (breaksWindow && size > 0) {
+            int last = size - 1;
+            recordError(latitudes[last], longitudes[last], times[last], last);
+            emit(latitudes[last], longitudes[last], accuracies[last], times[last], out);
+        }
+
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        accuracies[size] = accuracy;
+        times[size] = time;
+        size++;
+    }
+
+    // Emit the held-back newest fix so an upload includes the latest position
+    void drain(List<LocationOutbox.Fix> out) {
+        if (size > 0) {
+            int last = size - 1;
+            recordError(latitudes[last], longitudes[last], times[last], last);
+            emit(latitudes[last], longitudes[last], accuracies[last], times[last], out);
+        }
+    }
+
+    long getFixesIn() {
+        return fixesIn;
+    }
+
+    long getVerticesOut() {
+        return verticesOut;
+    }
+
+    // Largest distance between a dropped fix and the uploaded path
+    double getMaxErrorMeters() {
+        return maxErrorMeters;
+    }
+
+    String getStats() {
+        double ratio = verticesOut == 0 ? 0 : (double) fixesIn / verticesOut;
+        return "fixesIn=" + fixesIn + " verticesOut=" + verticesOut
+                + " compression=" + String.format("%.1f", ratio)
+                + " maxErrorMeters=" + String.format("%.1f", maxErrorMeters);
+    }
+
+    private void emit(double latitude, double longitude, float accuracy, long time, List<LocationOutbox.Fix> out) {
+        out.add(new LocationOutbox.Fix(latitude, longitude, accuracy, time));
+        verticesOut++;
+        hasAnchor = true;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorTime = time;
+        size = 0;
+    }
+
+    // Track the error of the fixes dropped in favour of the segment anchor -> end
+    private void recordError(double endLatitude, double endLongitude, long endTime, int count) {
+        maxErrorMeters = Math.max(maxErrorMeters, maxDeviation(endLatitude, endLongitude, endTime, count));
+    }
+
+    // Largest synchronized distance of the first count buffered fixes from the
+    // segment anchor -> end, in meters
+    private double maxDeviation(double endLatitude, double endLongitude, long endTime, int count) {
+        // Local equirectangular projection around the anchor is plenty at these scales
+        double metersPerDegree = Math.toRadians(1) * GeoMath.EARTH_RADIUS_METERS;
+        double cosLatitude = Math.cos(Math.toRadians(anchorLatitude));
+        double endX = (endLongitude - anchorLongitude) * cosLatitude * metersPerDegree;
+        double endY = (endLatitude - anchorLatitude) * metersPerDegree;
+        double duration = endTime - anchorTime;
+
+        double max = 0;
+        for (int i = 0; i < count; i++) {
+            double fraction = (times[i] - anchorTime) / duration;
+            double x = (longitudes[i] - anchorLongitude) * cosLatitude * metersPerDegree;
+            double y = (latitudes[i] - anchorLatitude) * metersPerDegree;
+            double dx = x - endX * fraction;
+            double dy = y - endY * fraction;
+            max = Math.max(max, Math.sqrt(dx * dx + dy * dy));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,633 @@
+package com.sentrycircle;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Orders everything the service uploads into priority lanes.
+ *
+ * Urgent lanes ({@link Lane#CRITICAL}, {@link Lane#HIGH}) are sent from a
+ * dedicated upload thread as soon as they are submitted, bypassing batching
+ * and the wakeup scheduler, and are retried with backoff until the server
+ * accepts them or the lane's attempt limit is reached. Retries follow the
+ * shared {@link RetryEngine}: jittered delays, an hourly retry budget, and
+ * waiting while the upload's endpoint has its circuit breaker open. Critical
+ * uploads are exempt from the budget and the breakers; an SOS keeps trying.
+ * When connectivity returns, waiting uploads are retried at once. An upload
+ * that spent a write budget token ({@link BudgetedUpload}) gets it back if it
+ * is dropped without being accepted.
+ * Each drain of the urgent lanes holds a short lease, from submission until
+ * the lanes have nothing ready, so a send is not stalled by doze. While
+ * critical uploads are pending the CPU is also kept awake by a lease of
+ * their own, so retries are not stretched out by doze.
+ *
+ * Deferrable lanes ({@link Lane#NORMAL}, {@link Lane#BULK}) keep their data
+ * in their own queues (the location outbox, the usage store) and are sent
+ * inline from the monitoring thread via {@link #runDeferrable}, which stands
+ * aside while urgent uploads are in flight and otherwise leaves the timing
+ * to the {@link BulkUploadPolicy}.
+ *
+ * Uploads that can travel as sync records ({@link SyncUpload}) share one
+ * request when several are ready at once; critical uploads never do. While a wake window is open, high
+ * lane uploads are held so they can join the window's location batch; what
+ * is left goes out together when the window closes. The server answers per
+ * record, and only the records it did not accept are retried.
+ *
+ * Every lane records the latency from when its data was produced to when
+ * the server accepted it, against the lane's SLO.
+ */
+class UploadScheduler {
+    private static final String TAG = "UploadScheduler";
+    // Each batch of an urgent drain extends the drain lease by this much
+    private static final long DRAIN_LEASE_TIMEOUT = 30 * 1000; // 30 seconds
+    // Each critical attempt extends the lease by this much
+    private static final long CRITICAL_LEASE_TIMEOUT = 30 * 1000; // 30 seconds
+    // Stop holding the CPU awake for critical retries after this long
+    private static final long CRITICAL_MAX_AWAKE = 10 * 60 * 1000; // 10 minutes
+
+    enum Lane {
+        // SOS and check-in responses
+        CRITICAL(true, 10 * 1000, 1000, 15 * 1000, 200, 0),
+        // Geofence transitions and command acknowledgements
+        HIGH(true, 60 * 1000, 5 * 1000, 5 * 60 * 1000, 30, 0),
+        // Location batches
+        NORMAL(false, 90 * 60 * 1000, 0, 0, 0, 60 * 60 * 1000),
+        // Usage totals
+        BULK(false, 3 * 60 * 60 * 1000, 0, 0, 0, 2 * 60 * 60 * 1000);
+
+        final boolean urgent;
+        final long sloMs;
+        final long minRetryDelay;
+        final long maxRetryDelay;
+        // Give up on an urgent upload the server keeps refusing after this many attempts
+        final int maxAttempts;
+        // Deferrable data older than this is sent whatever the conditions
+        final long maxStaleness;
+
+        Lane(boolean urgent, long sloMs, long minRetryDelay, long maxRetryDelay, int maxAttempts,
+                long maxStaleness) {
+            this.urgent = urgent;
+            this.sloMs = sloMs;
+            this.minRetryDelay = minRetryDelay;
+            this.maxRetryDelay = maxRetryDelay;
+            this.maxAttempts = maxAttempts;
+            this.maxStaleness = maxStaleness;
+        }
+    }
+
+    interface Upload {
+        // Send once; returns true when the server accepted the upload
+        boolean send();
+
+        // Endpoint the upload goes to (e.g. /api/location), whose circuit
+        // breaker it waits on; null for none
+        String endpoint();
+    }
+
+    // An upload that can also be sent as one record of a sync envelope
+    interface SyncUpload extends Upload {
+        // The upload as a sync record, built afresh for every attempt
+        SyncClient.Record toRecord() throws JSONException;
+
+        // The server answered the record; returns true when it was accepted
+        boolean onSynced(SyncClient.Record record);
+    }
+
+    // An upload that spent a write budget token when it was submitted
+    interface BudgetedUpload extends SyncUpload {
+        // The upload was dropped without the server accepting it (given up,
+        // replaced by a newer one, or the scheduler stopped)
+        void refund();
+    }
+
+    private static final class Job {
+        final Lane lane;
+        final String name;
+        final Upload upload;
+        final long producedAt;
+        int attempts;
+        long retryDelay;
+        long notBefore;
+        // Being sent, by the upload thread or inside a deferrable envelope
+        boolean inFlight;
+
+        Job(Lane lane, String name, Upload upload, long producedAt) {
+            this.lane = lane;
+            this.name = name;
+            this.upload = upload;
+            this.producedAt = producedAt;
+            this.retryDelay = lane.minRetryDelay;
+        }
+    }
+
+    private static final class LaneStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long attempts;
+        long retries;
+        long failures;
+        long deferrals;
+        long sloMisses;
+    }
+
+    private final WakeLeaseManager wakeLeases;
+    private final BulkUploadPolicy bulkPolicy;
+    // Null when the device is not registered
+    private final SyncClient syncClient;
+    private final RetryEngine retryEngine = MonitoringHttpClient.get().retryEngine();
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final ArrayDeque<Job> critical = new ArrayDeque<>();
+    private final ArrayDeque<Job> high = new ArrayDeque<>();
+    private final LaneStats[] stats = new LaneStats[Lane.values().length];
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainUrgent();
+        }
+    };
+
+    private boolean windowOpen;
+    private WakeLeaseManager.Lease drainLease;
+    private WakeLeaseManager.Lease criticalLease;
+    private long criticalAwakeSince;
+    private volatile boolean running = true;
+
+    UploadScheduler(WakeLeaseManager wakeLeases, BulkUploadPolicy bulkPolicy, SyncClient syncClient) {
+        this.wakeLeases = wakeLeases;
+        this.bulkPolicy = bulkPolicy;
+        this.syncClient = syncClient;
+        for (Lane lane : Lane.values()) {
+            stats[lane.ordinal()] = new LaneStats();
+        }
+        thread = new HandlerThread("SentryCircle-Uploads", Process.THREAD_PRIORITY_DEFAULT);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // Queue an upload on an urgent lane and start sending it right away
+    void submit(Lane lane, String name, Upload upload) {
+        if (!lane.urgent) {
+            throw new IllegalArgumentException(lane + " uploads run through runDeferrable");
+        }
+        Job job = new Job(lane, name, upload, System.currentTimeMillis());
+        synchronized (this) {
+            (lane == Lane.CRITICAL ? critical : high).add(job);
+            holdForDrain();
+            if (lane == Lane.CRITICAL && criticalLease == null) {
+                criticalAwakeSince = SystemClock.elapsedRealtime();
+                criticalLease = wakeLeases.acquire("critical-upload", CRITICAL_LEASE_TIMEOUT);
+            }
+        }
+        handler.removeCallbacks(drainRunnable);
+        handler.post(drainRunnable);
+    }
+
+    // Queue an upload on an urgent lane in place of any unsent one of the same
+    // name, for uploads where only the latest state matters
+    void submitLatest(Lane lane, String name, Upload upload) {
+        List<Job> replaced = new ArrayList<>(1);
+        synchronized (this) {
+            Iterator<Job> queued = (lane == Lane.CRITICAL ? critical : high).iterator();
+            while (queued.hasNext()) {
+                Job job = queued.next();
+                if (!job.inFlight && job.name.equals(name)) {
+                    queued.remove();
+                    replaced.add(job);
+                }
+            }
+        }
+        refund(replaced);
+        submit(lane, name, upload);
+    }
+
+    // Send a deferrable upload on the caller's thread if it is admitted.
+    // Returns true once the server accepted it.
+    boolean runDeferrable(Lane lane, String name, long producedAt, long pendingBytes, Upload upload) {
+        return admitDeferrable(lane, name, producedAt, pendingBytes) && sendDeferrable(lane, producedAt, upload);
+    }
+
+    // Whether a deferrable lane may send now. producedAt is when its oldest
+    // data was recorded (wall clock) and pendingBytes estimates the data
+    // waiting in the lane. Refused while urgent uploads are pending, so they
+    // get the network to themselves, or while the bulk policy holds the lane back.
+    boolean admitDeferrable(Lane lane, String name, long producedAt, long pendingBytes) {
+        LaneStats laneStats = stats[lane.ordinal()];
+        if (hasUrgentPending()) {
+            synchronized (this) {
+                laneStats.deferrals++;
+            }
+            Log.d(TAG, "Deferring " + name + " behind urgent uploads");
+            return false;
+        }
+        if (!bulkPolicy.allows(lane, producedAt, pendingBytes)) {
+            synchronized (this) {
+                laneStats.deferrals++;
+            }
+            Log.d(TAG, "Deferring " + name + " until upload conditions improve");
+            return false;
+        }
+        return true;
+    }
+
+    // Send one upload of an admitted deferrable lane on the caller's thread.
+    // Urgent uploads that are ready, or held for the wake window, ride along
+    // in the same sync envelope.
+    boolean sendDeferrable(Lane lane, long producedAt, Upload upload) {
+        LaneStats laneStats = stats[lane.ordinal()];
+        List<Job> batch;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            batch = batchWith(new Job(lane, lane.toString(), upload, producedAt), now);
+            String endpoint = upload.endpoint();
+            if (batch.size() == 1 && endpoint != null && retryEngine.blockedUntil(endpoint, now) != 0) {
+                laneStats.deferrals++;
+                Log.d(TAG, "Deferring " + lane + " while " + endpoint + " is failing");
+                return false;
+            }
+            start(batch, now);
+        }
+        boolean[] accepted = batch.size() > 1 ? sendEnvelope(batch) : null;
+        for (int i = 1; i < batch.size(); i++) {
+            Job job = batch.get(i);
+            complete(job, accepted != null ? accepted[i] : job.upload.send());
+        }
+        if (batch.size() > 1) {
+            // Pick up retries of the records the server did not accept
+            handler.post(drainRunnable);
+        }
+
+        boolean sent = accepted != null ? accepted[0] : upload.send();
+        if (!sent) {
+            synchronized (this) {
+                laneStats.failures++;
+            }
+            return false;
+        }
+        recordDelivery(lane, producedAt);
+        return true;
+    }
+
+    // Whether an urgent upload is being sent or is due to be; jobs waiting out
+    // a retry delay or a breaker, or held for the wake window, do not hold
+    // back other traffic
+    synchronized boolean hasUrgentPending() {
+        long now = SystemClock.elapsedRealtime();
+        return busy(critical, now) || (!holdingHigh() && busy(high, now));
+    }
+
+    // The network came back: retry waiting urgent uploads right away
+    void onConnectivityRestored() {
+        retryEngine.onConnectivityRestored();
+        synchronized (this) {
+            for (ArrayDeque<Job> lane : Arrays.asList(critical, high)) {
+                for (Job job : lane) {
+                    if (!job.inFlight) {
+                        job.notBefore = 0;
+                        job.retryDelay = job.lane.minRetryDelay;
+                    }
+                }
+            }
+            holdForDrain();
+        }
+        handler.removeCallbacks(drainRunnable);
+        handler.post(drainRunnable);
+    }
+
+    // A wake window opened: hold high lane uploads until it closes, so they
+    // can share a request with whatever else the window sends
+    synchronized void openWindow() {
+        windowOpen = true;
+    }
+
+    // The wake window closed: send what it left held, in one envelope. Called
+    // while the window still holds its lease; the drain lease taken here
+    // carries the send past the window's end.
+    void closeWindow() {
+        synchronized (this) {
+            windowOpen = false;
+            if (!high.isEmpty()) {
+                holdForDrain();
+            }
+        }
+        handler.removeCallbacks(drainRunnable);
+        handler.post(drainRunnable);
+    }
+
+    void stop() {
+        running = false;
+        handler.removeCallbacks(drainRunnable);
+        thread.quitSafely();
+        List<Job> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (!critical.isEmpty() || !high.isEmpty()) {
+                Log.w(TAG, "Dropping " + (critical.size() + high.size()) + " unsent urgent uploads");
+            }
+            dropped.addAll(critical);
+            dropped.addAll(high);
+            critical.clear();
+            high.clear();
+            releaseDrainLease();
+            releaseCriticalLease();
+        }
+        refund(dropped);
+    }
+
+    synchronized String getStats() {
+        StringBuilder summary = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            LaneStats laneStats = stats[lane.ordinal()];
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append(lane).append(": ").append(laneStats.latency.getSummary())
+                    .append(" sloMs=").append(lane.sloMs)
+                    .append(" sloMisses=").append(laneStats.sloMisses)
+                    .append(" attempts=").append(laneStats.attempts)
+                    .append(" retries=").append(laneStats.retries)
+                    .append(" failures=").append(laneStats.failures)
+                    .append(" deferrals=").append(laneStats.deferrals);
+        }
+        if (syncClient != null) {
+            summary.append("; sync: ").append(syncClient.getStats());
+        }
+        return summary.toString();
+    }
+
+    // Send urgent jobs, critical first, until both lanes are empty or every
+    // remaining job is waiting out its retry delay
+    private void drainUrgent() {
+        while (running) {
+            List<Job> batch;
+            long now = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                Job job = ready(critical, now);
+                if (job == null && !holdingHigh()) {
+                    job = ready(high, now);
+                }
+                if (job == null) {
+                    scheduleRetry(now);
+                    releaseDrainLease();
+                    return;
+                }
+                extendDrainLease();
+                if (job.lane == Lane.CRITICAL) {
+                    extendCriticalLease(now);
+                }
+                batch = batchWith(job, now);
+                start(batch, now);
+            }
+
+            boolean[] accepted = batch.size() > 1 ? sendEnvelope(batch) : null;
+            for (int i = 0; i < batch.size(); i++) {
+                Job job = batch.get(i);
+                complete(job, accepted != null ? accepted[i] : job.upload.send());
+            }
+        }
+    }
+
+    // Whether high lane jobs are being held for an open wake window; pointless
+    // when they cannot share a request anyway
+    private boolean holdingHigh() {
+        return windowOpen && syncClient != null && syncClient.isSupported();
+    }
+
+    // The job plus every other ready high lane job that can share its sync
+    // envelope. Critical jobs are never batched: an SOS goes alone to its own
+    // endpoint, so it does not depend on the sync endpoint or other records.
+    private List<Job> batchWith(Job job, long now) {
+        List<Job> batch = new ArrayList<>();
+        batch.add(job);
+        if (job.lane == Lane.CRITICAL || syncClient == null || !syncClient.isSupported()
+                || !(job.upload instanceof SyncUpload)
+                || retryEngine.blockedUntil(SyncClient.ENDPOINT, now) != 0) {
+            return batch;
+        }
+        for (Job other : high) {
+            if (batch.size() < SyncClient.MAX_RECORDS && other != job
+                    && readyAt(other, false, now) <= now && other.upload instanceof SyncUpload) {
+                batch.add(other);
+            }
+        }
+        return batch;
+    }
+
+    // Mark the batch as being sent, spending retry budget for its retries and
+    // claiming its endpoint (becoming the probe of a half-open breaker)
+    private void start(List<Job> batch, long now) {
+        for (Job job : batch) {
+            LaneStats laneStats = stats[job.lane.ordinal()];
+            laneStats.attempts++;
+            if (job.attempts > 0) {
+                laneStats.retries++;
+                if (job.lane != Lane.CRITICAL) {
+                    retryEngine.spendRetry(now);
+                }
+            }
+            job.attempts++;
+            job.inFlight = true;
+        }
+        String endpoint = batch.size() > 1 ? SyncClient.ENDPOINT : batch.get(0).upload.endpoint();
+        if (endpoint != null) {
+            retryEngine.acquire(endpoint, now);
+        }
+    }
+
+    // Send the jobs as one sync envelope, returning which of them the server
+    // accepted, or null (nothing sent) when it does not take envelopes
+    private boolean[] sendEnvelope(List<Job> batch) {
+        SyncClient.Record[] records = new SyncClient.Record[batch.size()];
+        List<SyncClient.Record> sendable = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                records[i] = ((SyncUpload) batch.get(i).upload).toRecord();
+                sendable.add(records[i]);
+            } catch (JSONException e) {
+                Log.e(TAG, "Cannot encode " + batch.get(i).name + " as a sync record", e);
+            }
+        }
+
+        boolean answered = !sendable.isEmpty() && syncClient.sync(sendable);
+        if (!answered && !syncClient.isSupported()) {
+            return null;
+        }
+        boolean[] accepted = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            accepted[i] = answered && records[i] != null && ((SyncUpload) batch.get(i).upload).onSynced(records[i]);
+        }
+        return accepted;
+    }
+
+    // Settle an attempt of an urgent job: done once accepted or out of
+    // attempts, otherwise backed off on its own for a retry
+    private void complete(Job job, boolean sent) {
+        boolean abandoned = false;
+        synchronized (this) {
+            job.inFlight = false;
+            if (sent || job.attempts >= job.lane.maxAttempts) {
+                if (!sent) {
+                    stats[job.lane.ordinal()].failures++;
+                    Log.e(TAG, "Giving up on " + job.name + " after " + job.attempts + " attempts");
+                    abandoned = true;
+                }
+                (job.lane == Lane.CRITICAL ? critical : high).remove(job);
+                if (critical.isEmpty()) {
+                    releaseCriticalLease();
+                }
+            } else {
+                stats[job.lane.ordinal()].failures++;
+                job.retryDelay = retryEngine.nextDelay(job.lane.minRetryDelay, job.lane.maxRetryDelay,
+                        job.retryDelay);
+                job.notBefore = SystemClock.elapsedRealtime() + job.retryDelay;
+                Log.w(TAG, "Upload " + job.name + " failed, retrying in "
+                        + (job.notBefore - SystemClock.elapsedRealtime()) + " ms");
+            }
+        }
+        if (sent) {
+            recordDelivery(job.lane, job.producedAt);
+        } else if (abandoned) {
+            refund(Collections.singletonList(job));
+        }
+    }
+
+    // Give back the write budget tokens of jobs dropped unsent; called
+    // outside the lock
+    private static void refund(List<Job> jobs) {
+        for (Job job : jobs) {
+            if (job.upload instanceof BudgetedUpload) {
+                ((BudgetedUpload) job.upload).refund();
+            }
+        }
+    }
+
+    // When the job may next be sent (elapsed realtime): after its retry delay,
+    // once the retry budget allows, and, when sent alone, once its endpoint's
+    // breaker does. Critical jobs only wait out their delay.
+    private long readyAt(Job job, boolean alone, long now) {
+        if (job.inFlight) {
+            return Long.MAX_VALUE;
+        }
+        long at = job.notBefore;
+        if (job.lane == Lane.CRITICAL) {
+            return at;
+        }
+        if (job.attempts > 0) {
+            at = Math.max(at, retryEngine.retryAvailableAt(now));
+        }
+        String endpoint = job.upload.endpoint();
+        if (alone && endpoint != null) {
+            at = Math.max(at, retryEngine.blockedUntil(endpoint, now));
+        }
+        return at;
+    }
+
+    // First job of the lane that may be sent now
+    private Job ready(ArrayDeque<Job> lane, long now) {
+        for (Job job : lane) {
+            if (readyAt(job, true, now) <= now) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    // Whether a job of the lane is being sent or may be sent now
+    private boolean busy(ArrayDeque<Job> lane, long now) {
+        for (Job job : lane) {
+            if (job.inFlight || readyAt(job, true, now) <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleRetry(long now) {
+        long next = nextDue(critical, Long.MAX_VALUE, now);
+        if (!holdingHigh()) {
+            // Held jobs are sent when the window closes
+            next = nextDue(high, next, now);
+        }
+        if (next != Long.MAX_VALUE) {
+            handler.postDelayed(drainRunnable, Math.max(0, next - now));
+        }
+    }
+
+    // Earliest time a job of the lane may be sent; jobs in flight are
+    // settled by their sender
+    private long nextDue(ArrayDeque<Job> lane, long next, long now) {
+        for (Job job : lane) {
+            next = Math.min(next, readyAt(job, true, now));
+        }
+        return next;
+    }
+
+    // Keep the CPU awake until the drain that was just requested has run
+    private void holdForDrain() {
+        if (drainLease == null) {
+            drainLease = wakeLeases.acquire("urgent-upload", DRAIN_LEASE_TIMEOUT);
+        }
+    }
+
+    // Give the batch about to be sent a full timeout of its own
+    private void extendDrainLease() {
+        WakeLeaseManager.Lease previous = drainLease;
+        drainLease = wakeLeases.acquire("urgent-upload", DRAIN_LEASE_TIMEOUT);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void releaseDrainLease() {
+        if (drainLease != null) {
+            drainLease.close();
+            drainLease = null;
+        }
+    }
+
+    // Overlap a fresh lease with the previous one so the CPU stays up through
+    // the retry delays, until critical uploads have been failing for too long
+    private void extendCriticalLease(long now) {
+        if (criticalAwakeSince == 0 || now - criticalAwakeSince > CRITICAL_MAX_AWAKE) {
+            releaseCriticalLease();
+            return;
+        }
+        WakeLeaseManager.Lease previous = criticalLease;
+        criticalLease = wakeLeases.acquire("critical-upload", CRITICAL_LEASE_TIMEOUT);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void releaseCriticalLease() {
+        if (criticalLease != null) {
+            criticalLease.close();
+            criticalLease = null;
+        }
+        if (critical.isEmpty()) {
+            criticalAwakeSince = 0;
+        }
+    }
+
+    private void recordDelivery(Lane lane, long producedAt) {
+        long latency = System.currentTimeMillis() - producedAt;
+        LaneStats laneStats = stats[lane.ordinal()];
+        laneStats.latency.record(latency);
+        if (latency > lane.sloMs) {
+            synchronized (this) {
+                laneStats.sloMisses++;
+            }
+            Log.w(TAG, lane + " upload took " + latency + " ms, over its " + lane.sloMs + " ms SLO");
+        }
+    }
+}
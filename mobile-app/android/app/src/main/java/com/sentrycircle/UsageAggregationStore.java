@@ -0,0 +1,151 @@
+package com.sentrycircle;
+
+import java.util.Arrays;
+
+/**
+ * Per-app usage totals in primitive arrays, bucketed by time.
+ *
+ * Package names are interned once; after that, recording usage only writes
+ * into long/int arrays indexed by bucket and package id. The uploader reads
+ * the arrays in place through {@link Snapshot}.
+ *
+ * The store holds one window of a day of buckets, opened with open(). Times
+ * outside the window are refused rather than folded into the edge buckets:
+ * callers stop at windowEnd() and carry on in the next window after reset().
+ */
+class UsageAggregationStore {
+    static final long BUCKET_MILLIS = 15 * 60 * 1000; // 15 minutes
+    static final int BUCKET_COUNT = 96; // one day
+
+    // Read-only view over the store, valid until the store is next modified
+    final class Snapshot {
+        long firstBucketStart() {
+            return firstBucket * BUCKET_MILLIS;
+        }
+
+        int bucketCount() {
+            return usedBuckets;
+        }
+
+        int packageCount() {
+            return dictionary.size();
+        }
+
+        String packageName(int packageId) {
+            return dictionary.name(packageId);
+        }
+
+        long foregroundMillis(int bucket, int packageId) {
+            return foregroundMillis[bucket * capacity + packageId];
+        }
+
+        int launchCount(int bucket, int packageId) {
+            return launchCounts[bucket * capacity + packageId];
+        }
+
+        boolean isEmpty() {
+            return usedBuckets == 0;
+        }
+    }
+
+    private final PackageDictionary dictionary;
+    private final Snapshot snapshot = new Snapshot();
+
+    private int capacity;
+    private long[] foregroundMillis;
+    private int[] launchCounts;
+
+    // Absolute index of bucket 0, -1 before open(), and number of buckets
+    // touched since reset
+    private long firstBucket = -1;
+    private int usedBuckets;
+
+    UsageAggregationStore(int expectedPackages) {
+        dictionary = new PackageDictionary(expectedPackages);
+        capacity = expectedPackages;
+        foregroundMillis = new long[BUCKET_COUNT * capacity];
+        launchCounts = new int[BUCKET_COUNT * capacity];
+    }
+
+    int intern(String packageName) {
+        int id = dictionary.intern(packageName);
+        if (id >= capacity) {
+            grow();
+        }
+        return id;
+    }
+
+    String packageName(int packageId) {
+        return dictionary.name(packageId);
+    }
+
+    // Start the window at the bucket holding time, unless one is already open
+    void open(long time) {
+        if (firstBucket < 0) {
+            firstBucket = time / BUCKET_MILLIS;
+        }
+    }
+
+    // End of the open window, exclusive
+    long windowEnd() {
+        return (firstBucket + BUCKET_COUNT) * BUCKET_MILLIS;
+    }
+
+    // Attribute foreground time, splitting it across bucket boundaries
+    void addForeground(int packageId, long start, long end) {
+        // Refuse the whole span up front rather than keep part of it
+        if (start < end && end > windowEnd()) {
+            throw new IllegalArgumentException("Usage until " + end + " beyond window end " + windowEnd());
+        }
+        while (start < end) {
+            long bucketEnd = (start / BUCKET_MILLIS + 1) * BUCKET_MILLIS;
+            long sliceEnd = Math.min(end, bucketEnd);
+            foregroundMillis[slot(start, packageId)] += sliceEnd - start;
+            start = sliceEnd;
+        }
+    }
+
+    void addLaunch(int packageId, long time) {
+        launchCounts[slot(time, packageId)]++;
+    }
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    // Zero the totals; interned ids stay valid
+    void reset() {
+        int used = usedBuckets * capacity;
+        Arrays.fill(foregroundMillis, 0, used, 0);
+        Arrays.fill(launchCounts, 0, used, 0);
+        firstBucket = -1;
+        usedBuckets = 0;
+    }
+
+    private int slot(long time, int packageId) {
+        if (firstBucket < 0) {
+            throw new IllegalStateException("Usage window not open");
+        }
+        long bucket = time / BUCKET_MILLIS - firstBucket;
+        if (bucket < 0 || bucket >= BUCKET_COUNT) {
+            throw new IllegalArgumentException("Usage at " + time + " outside window starting "
+                    + firstBucket * BUCKET_MILLIS);
+        }
+        usedBuckets = Math.max(usedBuckets, (int) bucket + 1);
+        return (int) bucket * capacity + packageId;
+    }
+
+    // Widen every bucket row when more packages appear than expected
+    private void grow() {
+        int newCapacity = capacity * 2;
+        long[] newForeground = new long[BUCKET_COUNT * newCapacity];
+        int[] newLaunches = new int[BUCKET_COUNT * newCapacity];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            System.arraycopy(foregroundMillis, bucket * capacity, newForeground, bucket * newCapacity, capacity);
+            System.arraycopy(launchCounts, bucket * capacity, newLaunches, bucket * newCapacity, capacity);
+        }
+        capacity = newCapacity;
+        foregroundMillis = newForeground;
+        launchCounts = newLaunches;
+    }
+}
@@ -0,0 +1,238 @@
+package com.sentrycircle;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Incrementally folds UsageStatsManager events into a UsageAggregationStore.
+ *
+ * Each tick queries only the events recorded since a persisted cursor, so
+ * the cost of a tick scales with new events rather than with history. The
+ * cursor and the still-resumed activities are persisted on commit(), once
+ * the totals gathered so far have been handed off.
+ *
+ * Foreground and background events are per activity. An app is in the
+ * foreground while any of its activities is resumed: switching screens
+ * inside an app, a repeated foreground event or a late background event
+ * from a replaced activity neither ends its session nor counts a launch.
+ */
+class UsageIngester {
+    private static final String TAG = "UsageIngester";
+    private static final String KEY_CURSOR = "usageCursor";
+    private static final String KEY_RESUMED_ACTIVITIES = "usageResumedActivities";
+    // The platform only keeps a few days of events; never look back further
+    private static final long MAX_LOOKBACK = 24 * 60 * 60 * 1000;
+
+    private final UsageStatsManager usageStatsManager;
+    private final SharedPreferences preferences;
+    private final UsageEvents.Event event = new UsageEvents.Event();
+
+    private final UsageAggregationStore store;
+
+    private long cursor;
+    // Activity class names, interned like package names in the store
+    private final PackageDictionary classNames = new PackageDictionary(64);
+    // Resumed activities keyed by package id and class id, see activityKey()
+    private long[] resumedActivities = new long[8];
+    private int resumedActivityCount;
+    // Per interned package id: resumed activity count and when its session
+    // started, -1 without an open session
+    private int[] resumedCounts = new int[0];
+    private long[] sessionStarts = new long[0];
+    // App whose last activity was just paused, or -1. Its session only ends
+    // if the next resumed activity belongs to another app: within an app the
+    // old screen pauses before the new one resumes.
+    private int pausedId = -1;
+    private long pausedAt;
+
+    UsageIngester(UsageStatsManager usageStatsManager, SharedPreferences preferences,
+                  UsageAggregationStore store) {
+        this.usageStatsManager = usageStatsManager;
+        this.preferences = preferences;
+        this.store = store;
+        this.cursor = preferences.getLong(KEY_CURSOR, 0);
+        // Open sessions were counted up to the cursor when it was committed,
+        // and their launches already recorded
+        String resumed = preferences.getString(KEY_RESUMED_ACTIVITIES, "");
+        for (String activity : resumed.split("\n")) {
+            int slash = activity.indexOf('/');
+            if (slash <= 0) {
+                continue;
+            }
+            int packageId = store.intern(activity.substring(0, slash));
+            int classId = classNames.intern(activity.substring(slash + 1));
+            if (addResumed(activityKey(packageId, classId))) {
+                ensureCapacity(packageId);
+                resumedCounts[packageId]++;
+                sessionStarts[packageId] = cursor;
+            }
+        }
+    }
+
+    // Read events since the cursor and fold them into the running totals.
+    // Returns the number of events processed.
+    int ingest(long now) {
+        long begin = Math.max(cursor, now - MAX_LOOKBACK);
+        // Stop at the end of the store's window; the rest is read into the
+        // next window once these totals are committed
+        store.open(begin);
+        long end = Math.min(now, store.windowEnd());
+        if (begin >= end) {
+            if (begin < now) {
+                Log.d(TAG, "Usage window full until committed");
+            }
+            return 0;
+        }
+        // Sessions carried from a cursor older than the lookback start with it
+        for (int id = 0; id < sessionStarts.length; id++) {
+            if (sessionStarts[id] >= 0 && sessionStarts[id] < begin) {
+                sessionStarts[id] = begin;
+            }
+        }
+
+        UsageEvents events = usageStatsManager.queryEvents(begin, end);
+        if (events == null) {
+            return 0;
+        }
+
+        int processed = 0;
+        while (events.getNextEvent(event)) {
+            int eventType = event.getEventType();
+            if (eventType == UsageEvents.Event.MOVE_TO_FOREGROUND
+                    || eventType == UsageEvents.Event.MOVE_TO_BACKGROUND) {
+                // Interned ids: no per-event strings once an activity has been seen
+                int packageId = store.intern(event.getPackageName());
+                String className = event.getClassName();
+                int classId = classNames.intern(className != null ? className : "");
+                if (eventType == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                    resume(packageId, classId, event.getTimeStamp());
+                } else {
+                    pause(packageId, classId, event.getTimeStamp());
+                }
+            }
+            processed++;
+        }
+
+        // Count apps still in the foreground up to the end, keeping their sessions open
+        endPausedSession();
+        for (int id = 0; id < resumedCounts.length; id++) {
+            if (resumedCounts[id] > 0) {
+                closeSession(id, end);
+                sessionStarts[id] = end;
+            }
+        }
+
+        cursor = end;
+        Log.d(TAG, "Ingested " + processed + " usage events");
+        return processed;
+    }
+
+    // Persist the cursor and clear the totals that have been handed off
+    void commit() {
+        StringBuilder resumed = new StringBuilder();
+        for (int i = 0; i < resumedActivityCount; i++) {
+            long key = resumedActivities[i];
+            if (resumed.length() > 0) {
+                resumed.append('\n');
+            }
+            resumed.append(store.packageName((int) (key >>> 32)))
+                    .append('/')
+                    .append(classNames.name((int) key));
+        }
+        preferences.edit()
+                .putLong(KEY_CURSOR, cursor)
+                .putString(KEY_RESUMED_ACTIVITIES, resumed.toString())
+                .apply();
+        store.reset();
+    }
+
+    // An activity was resumed: the app's session and a launch start when it
+    // is the app's first resumed activity, unless the app only switched screens
+    private void resume(int packageId, int classId, long timestamp) {
+        if (!addResumed(activityKey(packageId, classId))) {
+            return;
+        }
+        ensureCapacity(packageId);
+        if (packageId == pausedId) {
+            pausedId = -1;
+        } else {
+            endPausedSession();
+        }
+        if (resumedCounts[packageId]++ == 0 && sessionStarts[packageId] < 0) {
+            sessionStarts[packageId] = timestamp;
+            store.addLaunch(packageId, timestamp);
+        }
+    }
+
+    // An activity was paused: the app's session may end with its last
+    // resumed activity
+    private void pause(int packageId, int classId, long timestamp) {
+        if (!removeResumed(activityKey(packageId, classId))) {
+            return;
+        }
+        if (--resumedCounts[packageId] == 0) {
+            endPausedSession();
+            pausedId = packageId;
+            pausedAt = timestamp;
+        }
+    }
+
+    private void endPausedSession() {
+        if (pausedId >= 0) {
+            closeSession(pausedId, pausedAt);
+            sessionStarts[pausedId] = -1;
+            pausedId = -1;
+        }
+    }
+
+    private void closeSession(int packageId, long end) {
+        if (end > sessionStarts[packageId]) {
+            store.addForeground(packageId, sessionStarts[packageId], end);
+            sessionStarts[packageId] = end;
+        }
+    }
+
+    private static long activityKey(int packageId, int classId) {
+        return (long) packageId << 32 | (classId & 0xffffffffL);
+    }
+
+    // Only a handful of activities are resumed at once, so a linear scan
+    // over the keys is cheaper than any hashed set
+    private boolean addResumed(long key) {
+        for (int i = 0; i < resumedActivityCount; i++) {
+            if (resumedActivities[i] == key) {
+                return false;
+            }
+        }
+        if (resumedActivityCount == resumedActivities.length) {
+            resumedActivities = Arrays.copyOf(resumedActivities, resumedActivityCount * 2);
+        }
+        resumedActivities[resumedActivityCount++] = key;
+        return true;
+    }
+
+    private boolean removeResumed(long key) {
+        for (int i = 0; i < resumedActivityCount; i++) {
+            if (resumedActivities[i] == key) {
+                resumedActivities[i] = resumedActivities[--resumedActivityCount];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int packageId) {
+        if (packageId >= resumedCounts.length) {
+            int length = Math.max(packageId + 1, resumedCounts.length * 2);
+            resumedCounts = Arrays.copyOf(resumedCounts, length);
+            int oldLength = sessionStarts.length;
+            sessionStarts = Arrays.copyOf(sessionStarts, length);
+            // No session open yet
+            Arrays.fill(sessionStarts, oldLength, length, -1);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.sentrycircle;
+
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands out short, time-bounded holds on a single partial wake lock.
+ *
+ * Each unit of work takes a lease for as long as it runs. The underlying
+ * lock is held while at least one lease is active and never beyond the
+ * latest lease deadline, so a leaked lease cannot keep the CPU awake.
+ * Hold time is accounted per purpose and for the lock as a whole.
+ */
+class WakeLeaseManager {
+    private static final String TAG = "WakeLeaseManager";
+
+    // A hold on the CPU; close it as soon as the work is done
+    final class Lease implements AutoCloseable {
+        private final String purpose;
+        private final long acquiredAt;
+        private final long deadline;
+        private boolean closed;
+
+        private Lease(String purpose, long acquiredAt, long deadline) {
+            this.purpose = purpose;
+            this.acquiredAt = acquiredAt;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void close() {
+            closeLease(this);
+        }
+    }
+
+    // The platform wake lock; an interface so tests can stand in for it
+    interface Lock {
+        void acquire(long timeoutMs);
+
+        void release();
+
+        boolean isHeld();
+    }
+
+    // Accounting for one lease purpose
+    private static final class PurposeStats {
+        long leases;
+        long timeouts;
+        long totalHeldMs;
+        long maxHeldMs;
+    }
+
+    private final Lock wakeLock;
+    private final List<Lease> active = new ArrayList<>();
+    private final Map<String, PurposeStats> stats = new LinkedHashMap<>();
+
+    // Whether a hold is being accounted, from the first lease until none is left
+    private boolean locked;
+    private long lockHeldSince;
+    private long lockDeadline;
+    private long totalLockHeldMs;
+
+    WakeLeaseManager(PowerManager powerManager, String tag) {
+        final PowerManager.WakeLock platformLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        platformLock.setReferenceCounted(false);
+        wakeLock = new Lock() {
+            @Override
+            public void acquire(long timeoutMs) {
+                platformLock.acquire(timeoutMs);
+            }
+
+            @Override
+            public void release() {
+                platformLock.release();
+            }
+
+            @Override
+            public boolean isHeld() {
+                return platformLock.isHeld();
+            }
+        };
+    }
+
+    WakeLeaseManager(Lock wakeLock) {
+        this.wakeLock = wakeLock;
+    }
+
+    // Hold the CPU awake for at most timeoutMs
+    synchronized Lease acquire(String purpose, long timeoutMs) {
+        long now = now();
+        expireLeases(now);
+
+        Lease lease = new Lease(purpose, now, now + timeoutMs);
+        if (!locked) {
+            locked = true;
+            lockHeldSince = now;
+        }
+        active.add(lease);
+
+        // Extend the platform timeout to the latest lease deadline
+        if (lease.deadline > lockDeadline || !wakeLock.isHeld()) {
+            lockDeadline = Math.max(lockDeadline, lease.deadline);
+            wakeLock.acquire(lockDeadline - now);
+        }
+        return lease;
+    }
+
+    // Number of leases currently holding the CPU
+    synchronized int activeCount() {
+        expireLeases(now());
+        return active.size();
+    }
+
+    // Total time the wake lock has been held, including the current hold
+    synchronized long getTotalHeldMs() {
+        long now = now();
+        expireLeases(now);
+        return totalLockHeldMs + (locked ? now - lockHeldSince : 0);
+    }
+
+    synchronized String getStats() {
+        StringBuilder summary = new StringBuilder("totalHeldMs=").append(getTotalHeldMs());
+        for (Map.Entry<String, PurposeStats> entry : stats.entrySet()) {
+            PurposeStats purpose = entry.getValue();
+            summary.append(' ').append(entry.getKey())
+                    .append("[leases=").append(purpose.leases)
+                    .append(" heldMs=").append(purpose.totalHeldMs)
+                    .append(" maxMs=").append(purpose.maxHeldMs)
+                    .append(" timeouts=").append(purpose.timeouts)
+                    .append(']');
+        }
+        return summary.toString();
+    }
+
+    // Elapsed realtime; tests stand in for the clock
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    // Close a lease, along with any that are past their deadline, so an
+    // expired lease cannot keep the lock held after the live ones are done
+    private synchronized void closeLease(Lease lease) {
+        long now = now();
+        release(lease, false, now);
+        expireLeases(now);
+    }
+
+    private void release(Lease lease, boolean timedOut, long now) {
+        if (lease.closed) {
+            return;
+        }
+        lease.closed = true;
+        active.remove(lease);
+
+        long end = timedOut ? lease.deadline : now;
+        record(lease.purpose, end - lease.acquiredAt, timedOut);
+        if (timedOut) {
+            Log.w(TAG, "Wake lease '" + lease.purpose + "' hit its timeout");
+        }
+    }
+
+    // Leases past their deadline were already released by the platform
+    // timeout; drop them, and the lock once no lease is left
+    private void expireLeases(long now) {
+        for (Lease lease : new ArrayList<>(active)) {
+            if (now >= lease.deadline) {
+                release(lease, true, now);
+            }
+        }
+        if (active.isEmpty() && locked) {
+            // The platform drops the lock at the latest deadline at the latest
+            long lockEnd = Math.min(now, lockDeadline);
+            totalLockHeldMs += lockEnd - lockHeldSince;
+            locked = false;
+            lockDeadline = 0;
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+    }
+
+    private void record(String purpose, long heldMs, boolean timedOut) {
+        PurposeStats purposeStats = stats.get(purpose);
+        if (purposeStats == null) {
+            purposeStats = new PurposeStats();
+            stats.put(purpose, purposeStats);
+        }
+        purposeStats.leases++;
+        purposeStats.totalHeldMs += heldMs;
+        purposeStats.maxHeldMs = Math.max(purposeStats.maxHeldMs, heldMs);
+        if (timedOut) {
+            purposeStats.timeouts++;
+        }
+    }
+}
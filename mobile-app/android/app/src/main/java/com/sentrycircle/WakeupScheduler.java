@@ -0,0 +1,247 @@
+package com.sentrycircle;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single scheduler for periodic monitoring work.
+ *
+ * Each task has an interval and a flex: it may run up to flex milliseconds
+ * before it is due. Whenever the scheduler wakes for one task, every other
+ * task already inside its flex window runs in the same wake window, so the
+ * CPU and radio come up once instead of once per task.
+ *
+ * Wakeups are windowed alarms, so the device can sleep between windows and
+ * the platform may align them with other apps' alarms. From API 24 the
+ * alarm calls back on the monitoring thread; before that it starts the
+ * service with a PendingIntent, which hands it to {@link #onWakeAlarm}. Tasks run under a
+ * wake lease that ends with the window, and a {@link WindowListener} hears
+ * when a window opens and closes.
+ */
+class WakeupScheduler {
+    private static final String TAG = "WakeupScheduler";
+    private static final long HOUR = 60 * 60 * 1000;
+    // Upper bound on how long one wake window may hold the CPU
+    private static final long WINDOW_LEASE_TIMEOUT = 60 * 1000;
+
+    interface WindowListener {
+        // Called on the monitoring thread before the window's first task
+        void onWindowOpened();
+
+        // Called on the monitoring thread after the window's last task
+        void onWindowClosed();
+    }
+
+    private static final class Task {
+        final String name;
+        final Runnable action;
+        long interval;
+        long flex;
+        long nextDue;
+
+        Task(String name, Runnable action, long interval, long flex, long nextDue) {
+            this.name = name;
+            this.action = action;
+            this.interval = interval;
+            this.flex = flex;
+            this.nextDue = nextDue;
+        }
+    }
+
+    private final MonitoringThread thread;
+    private final AlarmManager alarmManager;
+    private final WakeLeaseManager wakeLeases;
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private final ArrayDeque<Long> recentWindows = new ArrayDeque<>();
+    // Pre-N wakeup, delivered to the service
+    private final PendingIntent wakeIntent;
+
+    // Created on first use: OnAlarmListener only exists from API 24
+    private AlarmManager.OnAlarmListener wakeAlarm;
+    private WindowListener windowListener;
+    private long scheduledWake = Long.MAX_VALUE;
+    private long windowCount;
+    private long taskRunCount;
+
+    WakeupScheduler(MonitoringThread thread, AlarmManager alarmManager, WakeLeaseManager wakeLeases,
+            PendingIntent wakeIntent) {
+        this.thread = thread;
+        this.alarmManager = alarmManager;
+        this.wakeLeases = wakeLeases;
+        this.wakeIntent = wakeIntent;
+    }
+
+    synchronized void setWindowListener(WindowListener listener) {
+        windowListener = listener;
+    }
+
+    // Register a periodic task, first due after initialDelay
+    synchronized void schedule(String name, long interval, long flex, long initialDelay, Runnable action) {
+        long now = SystemClock.elapsedRealtime();
+        tasks.put(name, new Task(name, action, interval, Math.min(flex, interval), now + initialDelay));
+        rescheduleWake();
+    }
+
+    // Change a task's cadence; the next run moves accordingly
+    synchronized void reschedule(String name, long interval, long flex) {
+        Task task = tasks.get(name);
+        if (task == null) {
+            return;
+        }
+        task.nextDue = task.nextDue - task.interval + interval;
+        task.interval = interval;
+        task.flex = Math.min(flex, interval);
+        rescheduleWake();
+    }
+
+    synchronized void cancel(String name) {
+        tasks.remove(name);
+        rescheduleWake();
+    }
+
+    synchronized void cancelAll() {
+        tasks.clear();
+        rescheduleWake();
+    }
+
+    // Run a task immediately, together with any task inside its flex window.
+    // Used when something else (e.g. a location burst) already woke the device.
+    void runNow(String name) {
+        runWindow(name);
+    }
+
+    // The pre-N wake alarm started the service. The platform only holds the
+    // CPU until the start is delivered, so a lease covers the hop to the
+    // monitoring thread.
+    void onWakeAlarm() {
+        final WakeLeaseManager.Lease lease = wakeLeases.acquire("wake-alarm", WINDOW_LEASE_TIMEOUT);
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runWindow(null);
+                } finally {
+                    lease.close();
+                }
+            }
+        });
+    }
+
+    // Distinct wake windows opened during the last hour
+    synchronized int getWindowsLastHour() {
+        pruneWindows(SystemClock.elapsedRealtime());
+        return recentWindows.size();
+    }
+
+    synchronized String getStats() {
+        return "windows=" + windowCount + " taskRuns=" + taskRunCount
+                + " windowsLastHour=" + getWindowsLastHour();
+    }
+
+    private void runWindow(String forced) {
+        List<Task> due = new ArrayList<>();
+        WindowListener listener;
+        synchronized (this) {
+            listener = windowListener;
+            long now = SystemClock.elapsedRealtime();
+            scheduledWake = Long.MAX_VALUE;
+            for (Task task : tasks.values()) {
+                if (task.name.equals(forced) || now >= task.nextDue - task.flex) {
+                    task.nextDue = now + task.interval;
+                    due.add(task);
+                }
+            }
+            if (!due.isEmpty()) {
+                windowCount++;
+                taskRunCount += due.size();
+                recentWindows.addLast(now);
+                pruneWindows(now);
+            }
+            rescheduleWake();
+        }
+
+        if (due.isEmpty()) {
+            return;
+        }
+        try (WakeLeaseManager.Lease lease = wakeLeases.acquire("wake-window", WINDOW_LEASE_TIMEOUT)) {
+            if (listener != null) {
+                listener.onWindowOpened();
+            }
+            try {
+                for (Task task : due) {
+                    try {
+                        task.action.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Task " + task.name + " failed", e);
+                    }
+                }
+            } finally {
+                if (listener != null) {
+                    listener.onWindowClosed();
+                }
+            }
+        }
+    }
+
+    // Wake for the earliest due task; the others ride along if within flex
+    private void rescheduleWake() {
+        Task earliest = null;
+        for (Task task : tasks.values()) {
+            if (earliest == null || task.nextDue < earliest.nextDue) {
+                earliest = task;
+            }
+        }
+        long wakeAt = earliest == null ? Long.MAX_VALUE : earliest.nextDue;
+        if (wakeAt == scheduledWake) {
+            return;
+        }
+
+        boolean useAlarm = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        if (useAlarm) {
+            alarmManager.cancel(wakeAlarm());
+        } else {
+            alarmManager.cancel(wakeIntent);
+        }
+        scheduledWake = wakeAt;
+        if (earliest == null) {
+            return;
+        }
+
+        // Let the platform fire anywhere inside the earliest task's flex window
+        if (useAlarm) {
+            alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    earliest.nextDue - earliest.flex, earliest.flex, TAG, wakeAlarm(), thread.getHandler());
+        } else {
+            alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    earliest.nextDue - earliest.flex, earliest.flex, wakeIntent);
+        }
+    }
+
+    // The alarm listener, only ever called with API 24 or later
+    private AlarmManager.OnAlarmListener wakeAlarm() {
+        if (wakeAlarm == null) {
+            wakeAlarm = new AlarmManager.OnAlarmListener() {
+                @Override
+                public void onAlarm() {
+                    runWindow(null);
+                }
+            };
+        }
+        return wakeAlarm;
+    }
+
+    private void pruneWindows(long now) {
+        while (!recentWindows.isEmpty() && now - recentWindows.peekFirst() > HOUR) {
+            recentWindows.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.sentrycircle;
+
+import android.util.Log;
+
+/**
+ * Paces the uploads that cost the worker KV writes.
+ *
+ * The worker's KV store has a small daily write quota shared by every
+ * device of the account, so each {@link RecordClass} gets a token bucket:
+ * an upload of the class spends a token, tokens refill steadily over the
+ * day, and the bucket holds at most a small burst. A device can therefore
+ * never spend a day's writes in a morning.
+ *
+ * Rates come from the worker's {@link #HEADER} response header, e.g.
+ * "location=32/4,geofence=24/6,status=24/3,usage=24/2" (uploads per day /
+ * burst); the worker derives them from its write quota and the number of
+ * registered devices. Callers decide what happens without a token: fixes
+ * coalesce into a later, larger batch, the status waits for a later
+ * heartbeat, usage totals keep adding up until a later scan, and geofence
+ * transitions are held back and summarised. SOS uploads and command acknowledgements are not paced.
+ *
+ * The service persists the bucket levels ({@link #save}, {@link #restore}),
+ * so a restart does not refill a full burst. Tokens spent on uploads the
+ * server never accepted are refunded.
+ */
+class WriteBudget {
+    static final String HEADER = "X-Write-Budget";
+
+    private static final String TAG = "WriteBudget";
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    enum RecordClass {
+        LOCATION("location", 32, 4),
+        GEOFENCE("geofence", 24, 6),
+        STATUS("status", 24, 3),
+        USAGE("usage", 24, 2);
+
+        final String key;
+        // Used until the worker sends its own rates
+        final int defaultPerDay;
+        final int defaultBurst;
+
+        RecordClass(String key, int defaultPerDay, int defaultBurst) {
+            this.key = key;
+            this.defaultPerDay = defaultPerDay;
+            this.defaultBurst = defaultBurst;
+        }
+    }
+
+    private static final class Bucket {
+        int perDay;
+        int burst;
+        double tokens;
+        long refilledAt;
+        long spent;
+        long denied;
+        long summarised;
+
+        Bucket(int perDay, int burst, long now) {
+            this.perDay = perDay;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+    }
+
+    private final Bucket[] buckets = new Bucket[RecordClass.values().length];
+    // Header value the rates were last taken from
+    private String config;
+
+    WriteBudget(long now) {
+        for (RecordClass recordClass : RecordClass.values()) {
+            buckets[recordClass.ordinal()] = new Bucket(recordClass.defaultPerDay, recordClass.defaultBurst, now);
+        }
+    }
+
+    // Whole tokens the class has left
+    synchronized int tokens(RecordClass recordClass, long now) {
+        return (int) refill(recordClass, now).tokens;
+    }
+
+    // 0 if an upload of the class may go now, otherwise the elapsed realtime
+    // at which a token will be available
+    synchronized long availableAt(RecordClass recordClass, long now) {
+        Bucket bucket = refill(recordClass, now);
+        if (bucket.tokens >= 1) {
+            return 0;
+        }
+        if (bucket.perDay <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return now + (long) Math.ceil((1 - bucket.tokens) * DAY / bucket.perDay);
+    }
+
+    // Spend a token on an upload of the class; false if none is left
+    synchronized boolean tryAcquire(RecordClass recordClass, long now) {
+        Bucket bucket = refill(recordClass, now);
+        if (bucket.tokens < 1) {
+            bucket.denied++;
+            return false;
+        }
+        bucket.tokens--;
+        bucket.spent++;
+        return true;
+    }
+
+    // Give back the token of an upload the server did not accept
+    synchronized void refund(RecordClass recordClass) {
+        Bucket bucket = buckets[recordClass.ordinal()];
+        bucket.tokens = Math.min(bucket.burst, bucket.tokens + 1);
+        bucket.spent--;
+    }
+
+    // Bucket levels and the last announced rates, for the caller to persist.
+    // Stamped with the wall clock so refill carries on across a reboot.
+    synchronized String save(long now, long wallTime) {
+        StringBuilder state = new StringBuilder().append(wallTime)
+                .append('\n').append(config != null ? config : "");
+        for (RecordClass recordClass : RecordClass.values()) {
+            state.append('\n').append(recordClass.key).append('=').append(refill(recordClass, now).tokens);
+        }
+        return state.toString();
+    }
+
+    // Restore what save() returned, refilled for the wall clock time since.
+    // A clock that went backwards refills nothing.
+    synchronized void restore(String state, long now, long wallTime) {
+        String[] lines = state.split("\n", -1);
+        long savedAt;
+        try {
+            savedAt = lines.length >= 2 ? Long.parseLong(lines[0]) : -1;
+        } catch (NumberFormatException e) {
+            savedAt = -1;
+        }
+        if (savedAt < 0) {
+            Log.w(TAG, "Ignoring malformed saved write budget");
+            return;
+        }
+        if (!lines[1].isEmpty()) {
+            configure(lines[1], now);
+        }
+        long elapsed = Math.max(0, wallTime - savedAt);
+        for (int i = 2; i < lines.length; i++) {
+            String[] keyValue = lines[i].split("=");
+            for (RecordClass recordClass : RecordClass.values()) {
+                if (keyValue.length != 2 || !recordClass.key.equals(keyValue[0])) {
+                    continue;
+                }
+                try {
+                    double tokens = Math.max(0, Double.parseDouble(keyValue[1]));
+                    Bucket bucket = refill(recordClass, now);
+                    bucket.tokens = Math.min(bucket.burst, tokens + (double) elapsed * bucket.perDay / DAY);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring malformed saved write budget " + lines[i]);
+                }
+            }
+        }
+    }
+
+    // Count records folded into a summary instead of being sent
+    synchronized void recordSummarised(RecordClass recordClass, int records) {
+        buckets[recordClass.ordinal()].summarised += records;
+    }
+
+    // Apply the rates in a header value; unknown classes and malformed
+    // entries are ignored
+    synchronized void configure(String header, long now) {
+        if (header.equals(config)) {
+            return;
+        }
+        config = header;
+        for (String entry : header.split(",")) {
+            String[] keyValue = entry.trim().split("=");
+            String[] rate = keyValue.length == 2 ? keyValue[1].split("/") : new String[0];
+            if (rate.length != 2) {
+                continue;
+            }
+            for (RecordClass recordClass : RecordClass.values()) {
+                if (!recordClass.key.equals(keyValue[0])) {
+                    continue;
+                }
+                try {
+                    int perDay = Integer.parseInt(rate[0].trim());
+                    int burst = Integer.parseInt(rate[1].trim());
+                    Bucket bucket = refill(recordClass, now);
+                    bucket.perDay = Math.max(0, perDay);
+                    bucket.burst = Math.max(1, burst);
+                    bucket.tokens = Math.min(bucket.tokens, bucket.burst);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring malformed write budget " + entry);
+                }
+            }
+        }
+        Log.d(TAG, "Write budget set to " + header);
+    }
+
+    synchronized String getStats() {
+        StringBuilder summary = new StringBuilder();
+        for (RecordClass recordClass : RecordClass.values()) {
+            Bucket bucket = buckets[recordClass.ordinal()];
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append(recordClass.key).append(": ")
+                    .append(bucket.perDay).append('/').append(bucket.burst)
+                    .append(" tokens=").append((int) bucket.tokens)
+                    .append(" spent=").append(bucket.spent)
+                    .append(" denied=").append(bucket.denied)
+                    .append(" summarised=").append(bucket.summarised);
+        }
+        return summary.toString();
+    }
+
+    private Bucket refill(RecordClass recordClass, long now) {
+        Bucket bucket = buckets[recordClass.ordinal()];
+        long elapsed = now - bucket.refilledAt;
+        if (elapsed > 0) {
+            bucket.tokens = Math.min(bucket.burst, bucket.tokens + (double) elapsed * bucket.perDay / DAY);
+            bucket.refilledAt = now;
+        }
+        return bucket;
+    }
+}
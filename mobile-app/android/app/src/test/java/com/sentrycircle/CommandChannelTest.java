@@ -0,0 +1,114 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link CommandChannel} against {@link CommandStandInServer}.
+ */
+public class CommandChannelTest {
+    private static final String DEVICE_ID = "device-id";
+    private static final long TIMEOUT_MS = 5 * 1000;
+
+    private final BlockingQueue<JSONObject> received = new LinkedBlockingQueue<>();
+    private CommandStandInServer server;
+    private CommandChannel channel;
+
+    @After
+    public void tearDown() {
+        if (channel != null) {
+            channel.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void unchangedPollIsAnsweredNotModified() throws Exception {
+        start(false);
+        JSONObject command = server.enqueue(DEVICE_ID, "CHECK_IN", null);
+        channel.start();
+
+        assertEquals(command.getString("id"), poll().getString("id"));
+        assertFalse(channel.isLongPolling());
+
+        // The next poll sends the ETag of the first and changes nothing
+        channel.nudge(null);
+        awaitRequests(2);
+        assertEquals(1, server.getNotModifiedCount());
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        // A new command changes the ETag, and only the new command is dispatched
+        JSONObject next = server.enqueue(DEVICE_ID, "CHECK_IN", null);
+        channel.nudge(null);
+        assertEquals(next.getString("id"), poll().getString("id"));
+        assertEquals(1, server.getNotModifiedCount());
+    }
+
+    @Test
+    public void parkedLongPollWakesOnNewCommand() throws Exception {
+        start(true);
+        channel.start();
+
+        // The first fetch returns the empty list; the second parks
+        awaitRequests(1);
+        Thread.sleep(200);
+        assertTrue(channel.isLongPolling());
+
+        JSONObject command = server.enqueue(DEVICE_ID, "SET_GEOFENCES", new JSONObject());
+        assertEquals(command.getString("id"), poll().getString("id"));
+    }
+
+    @Test
+    public void acknowledgementUpdatesCommandStatus() throws Exception {
+        start(false);
+        JSONObject command = server.enqueue(DEVICE_ID, "CHECK_IN", null);
+        channel.start();
+        String id = poll().getString("id");
+        assertEquals(command.getString("id"), id);
+
+        JSONObject result = new JSONObject();
+        result.put("latitude", 37.7749);
+        assertTrue(channel.acknowledge(id, "completed", result));
+        assertEquals("completed", server.getStatus(id));
+
+        assertFalse(channel.acknowledge("unknown-command", "completed", null));
+    }
+
+    private void start(boolean longPoll) throws Exception {
+        server = new CommandStandInServer(longPoll);
+        String baseUrl = server.start();
+        channel = new CommandChannel(baseUrl, DEVICE_ID, "token", new CommandChannel.Listener() {
+            @Override
+            public void onCommand(JSONObject command) {
+                received.add(command);
+            }
+        });
+    }
+
+    private JSONObject poll() throws InterruptedException {
+        JSONObject command = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("No command dispatched", command);
+        return command;
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getRequestCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Expected " + count + " requests", server.getRequestCount() >= count);
+    }
+}
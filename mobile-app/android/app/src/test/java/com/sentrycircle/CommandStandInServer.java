@@ -0,0 +1,279 @@
+package com.sentrycircle;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-process stand-in for the worker's command endpoints, for exercising
+ * {@link CommandChannel} without a deployed backend.
+ *
+ * Serves GET /api/command/{deviceId} (with ETag, If-None-Match and long
+ * poll via ?wait=seconds) and PUT /api/command/{deviceId}/{commandId} on the
+ * loopback interface. Commands are queued with {@link #enqueue}.
+ */
+class CommandStandInServer {
+    private static final String TAG = "CommandStandInServer";
+
+    private final Map<String, JSONObject> commands = new LinkedHashMap<>();
+    private final boolean supportsLongPoll;
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+    private long version;
+    private int requestCount;
+    private int notModifiedCount;
+
+    CommandStandInServer(boolean supportsLongPoll) {
+        this.supportsLongPoll = supportsLongPoll;
+    }
+
+    // Start listening on an ephemeral loopback port and return the base URL
+    String start() throws IOException {
+        serverSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        running = true;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "CommandStandInServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    void stop() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing stand-in server", e);
+        }
+    }
+
+    // Queue a pending command, waking any parked long poll
+    synchronized JSONObject enqueue(String deviceId, String type, JSONObject data) throws JSONException {
+        JSONObject command = new JSONObject();
+        command.put("id", UUID.randomUUID().toString());
+        command.put("deviceId", deviceId);
+        command.put("type", type);
+        command.put("data", data != null ? data : new JSONObject());
+        command.put("status", "pending");
+        command.put("createdAt", System.currentTimeMillis());
+        commands.put(command.getString("id"), command);
+        version++;
+        notifyAll();
+        return command;
+    }
+
+    // Command list requests served, and how many of them were answered 304
+    synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    synchronized int getNotModifiedCount() {
+        return notModifiedCount;
+    }
+
+    synchronized String getStatus(String commandId) {
+        JSONObject command = commands.get(commandId);
+        return command != null ? command.optString("status") : null;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.w(TAG, "Accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket client = socket) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String target = parts[1];
+
+            String ifNoneMatch = null;
+            int contentLength = 0;
+            String header;
+            while ((header = in.readLine()) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                String name = header.substring(0, colon).trim().toLowerCase();
+                String value = header.substring(colon + 1).trim();
+                if (name.equals("if-none-match")) {
+                    ifNoneMatch = value;
+                } else if (name.equals("content-length")) {
+                    contentLength = Integer.parseInt(value);
+                }
+            }
+            char[] body = new char[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int n = in.read(body, read, contentLength - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+
+            String path = target;
+            String query = "";
+            int question = target.indexOf('?');
+            if (question >= 0) {
+                path = target.substring(0, question);
+                query = target.substring(question + 1);
+            }
+            String[] segments = path.substring(1).split("/");
+
+            if (method.equals("GET") && segments.length == 3) {
+                handleList(client.getOutputStream(), query, ifNoneMatch);
+            } else if (method.equals("PUT") && segments.length == 4) {
+                handleUpdate(client.getOutputStream(), segments[3], new String(body, 0, read));
+            } else {
+                respond(client.getOutputStream(), 404, null, null, "{\"error\":\"Not found\"}");
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            Log.w(TAG, "Request failed", e);
+        }
+    }
+
+    private void handleList(OutputStream out, String query, String ifNoneMatch)
+            throws IOException, JSONException {
+        int waitSeconds = 0;
+        String status = null;
+        for (String param : query.split("&")) {
+            if (param.startsWith("wait=")) {
+                waitSeconds = Integer.parseInt(param.substring(5));
+            } else if (param.startsWith("status=")) {
+                status = param.substring(7);
+            }
+        }
+
+        String etag;
+        JSONArray matching = new JSONArray();
+        synchronized (this) {
+            // Park the request until the command list changes or the wait ends
+            if (supportsLongPoll && waitSeconds > 0 && etagFor(version).equals(ifNoneMatch)) {
+                long deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+                long remaining;
+                while (running && etagFor(version).equals(ifNoneMatch)
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            etag = etagFor(version);
+            for (JSONObject command : new ArrayList<>(commands.values())) {
+                if (status == null || status.equals(command.optString("status"))) {
+                    matching.put(command);
+                }
+            }
+        }
+
+        String longPoll = supportsLongPoll && waitSeconds > 0 ? "1" : null;
+        synchronized (this) {
+            requestCount++;
+            if (etag.equals(ifNoneMatch)) {
+                notModifiedCount++;
+            }
+        }
+        if (etag.equals(ifNoneMatch)) {
+            respond(out, 304, etag, longPoll, null);
+            return;
+        }
+        JSONObject response = new JSONObject();
+        response.put("commands", matching);
+        respond(out, 200, etag, longPoll, response.toString());
+    }
+
+    private void handleUpdate(OutputStream out, String commandId, String body)
+            throws IOException, JSONException {
+        JSONObject update = new JSONObject(body);
+        JSONObject command;
+        synchronized (this) {
+            command = commands.get(commandId);
+            if (command != null) {
+                command.put("status", update.optString("status", command.optString("status")));
+                if (update.has("result")) {
+                    command.put("result", update.opt("result"));
+                }
+                command.put("updatedAt", System.currentTimeMillis());
+                version++;
+                notifyAll();
+            }
+        }
+        if (command == null) {
+            respond(out, 404, null, null, "{\"error\":\"Command not found\"}");
+            return;
+        }
+        JSONObject response = new JSONObject();
+        response.put("success", true);
+        response.put("command", command);
+        respond(out, 200, null, null, response.toString());
+    }
+
+    private static String etagFor(long version) {
+        return "\"v" + version + "\"";
+    }
+
+    private static void respond(OutputStream out, int code, String etag, String longPoll, String body)
+            throws IOException {
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(code)
+                .append(code == 200 ? " OK" : code == 304 ? " Not Modified" : " Not Found")
+                .append("\r\nConnection: close\r\nContent-Length: ").append(bytes.length);
+        if (body != null) {
+            head.append("\r\nContent-Type: application/json");
+        }
+        if (etag != null) {
+            head.append("\r\nETag: ").append(etag);
+        }
+        if (longPoll != null) {
+            head.append("\r\nX-Long-Poll: ").append(longPoll);
+        }
+        head.append("\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(bytes);
+        out.flush();
+    }
+}
@@ -0,0 +1,115 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link GeofenceEngine} transitions and measures the cost of a fix.
+ */
+public class GeofenceEngineTest {
+    private static final double LATITUDE = 37.7749;
+    private static final double LONGITUDE = -122.4194;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * GeoMath.EARTH_RADIUS_METERS;
+
+    @Test
+    public void boundaryJitterDoesNotFlap() {
+        GeofenceEngine engine = new GeofenceEngine();
+        engine.setZones(Collections.singletonList("home"), new double[] {LATITUDE},
+                new double[] {LONGITUDE}, new double[] {200});
+        List<GeofenceEngine.Transition> transitions = new ArrayList<>();
+
+        // Inside the radius but not by the margin: no entry yet
+        engine.evaluate(north(190), LONGITUDE, 20, 1000, transitions);
+        assertTrue(transitions.isEmpty());
+
+        engine.evaluate(north(150), LONGITUDE, 20, 2000, transitions);
+        assertEquals(1, transitions.size());
+        assertTrue(transitions.get(0).entered);
+        assertEquals("home", transitions.get(0).zoneId);
+
+        // Jitter either side of the radius keeps the zone inside
+        for (int i = 0; i < 10; i++) {
+            engine.evaluate(north(i % 2 == 0 ? 190 : 210), LONGITUDE, 20, 3000 + i, transitions);
+        }
+        assertEquals(1, transitions.size());
+
+        engine.evaluate(north(250), LONGITUDE, 20, 4000, transitions);
+        assertEquals(2, transitions.size());
+        assertFalse(transitions.get(1).entered);
+        assertTrue(engine.getInsideZoneIds().isEmpty());
+    }
+
+    @Test
+    public void restoredZoneIsNotReportedAgain() {
+        GeofenceEngine engine = new GeofenceEngine();
+        engine.setZones(Collections.singletonList("school"), new double[] {LATITUDE},
+                new double[] {LONGITUDE}, new double[] {150});
+        engine.restoreInside(Collections.singletonList("school"));
+        List<GeofenceEngine.Transition> transitions = new ArrayList<>();
+
+        engine.evaluate(LATITUDE, LONGITUDE, 10, 1000, transitions);
+        assertTrue(transitions.isEmpty());
+        assertEquals(Collections.singletonList("school"), engine.getInsideZoneIds());
+    }
+
+    // Not a rigorous benchmark: reports the cost of a fix with 500 zones
+    // spread over a city, and bounds it loosely enough for a shared CI host
+    @Test
+    public void fixCostWithFiveHundredZones() {
+        Random random = new Random(13);
+        int zones = 500;
+        List<String> ids = new ArrayList<>(zones);
+        double[] latitudes = new double[zones];
+        double[] longitudes = new double[zones];
+        double[] radii = new double[zones];
+        for (int i = 0; i < zones; i++) {
+            ids.add("zone-" + i);
+            latitudes[i] = LATITUDE + (random.nextDouble() - 0.5) * 0.3;
+            longitudes[i] = LONGITUDE + (random.nextDouble() - 0.5) * 0.3;
+            radii[i] = 100 + random.nextInt(400);
+        }
+        GeofenceEngine engine = new GeofenceEngine();
+        engine.setZones(ids, latitudes, longitudes, radii);
+
+        int fixes = 200000;
+        double[] fixLatitudes = new double[fixes];
+        double[] fixLongitudes = new double[fixes];
+        for (int i = 0; i < fixes; i++) {
+            fixLatitudes[i] = LATITUDE + (random.nextDouble() - 0.5) * 0.3;
+            fixLongitudes[i] = LONGITUDE + (random.nextDouble() - 0.5) * 0.3;
+        }
+        List<GeofenceEngine.Transition> transitions = new ArrayList<>();
+
+        // Warm up so the measured pass runs compiled code
+        for (int round = 0; round < 5; round++) {
+            transitions.clear();
+            for (int i = 0; i < fixes; i++) {
+                engine.evaluate(fixLatitudes[i], fixLongitudes[i], 20, i, transitions);
+            }
+        }
+
+        transitions.clear();
+        long start = System.nanoTime();
+        for (int i = 0; i < fixes; i++) {
+            engine.evaluate(fixLatitudes[i], fixLongitudes[i], 20, i, transitions);
+        }
+        double nanosPerFix = (double) (System.nanoTime() - start) / fixes;
+        System.out.println("Geofences: " + engine.getStats()
+                + " nanosPerFix=" + String.format("%.0f", nanosPerFix));
+
+        assertFalse(transitions.isEmpty());
+        assertTrue("Fix cost " + nanosPerFix + " ns", nanosPerFix < 10000);
+    }
+
+    private static double north(double meters) {
+        return LATITUDE + meters / METERS_PER_DEGREE;
+    }
+}
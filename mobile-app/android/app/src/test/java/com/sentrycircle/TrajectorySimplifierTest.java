@@ -0,0 +1,105 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays the trace in trajectory-trace.csv through {@link TrajectorySimplifier}
+ * and checks every input fix against the uploaded path.
+ *
+ * The trace covers a stationary start, a walk with a right-angle turn, an
+ * arc, a drive and a stationary end, with the accuracy and noise of each.
+ */
+public class TrajectorySimplifierTest {
+    // Same settings as DeviceMonitoringService
+    private static final double ERROR_BOUND_METERS = 25;
+    private static final long MAX_VERTEX_INTERVAL = 30 * 60 * 1000;
+
+    // Slack for the simplifier's local projection against great-circle distance
+    private static final double PROJECTION_SLACK_METERS = 0.5;
+
+    @Test
+    public void everyFixIsWithinTheErrorBoundOfTheUploadedPath() throws Exception {
+        List<LocationOutbox.Fix> trace = loadTrace();
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(ERROR_BOUND_METERS, MAX_VERTEX_INTERVAL);
+        List<LocationOutbox.Fix> vertices = new ArrayList<>();
+        for (LocationOutbox.Fix fix : trace) {
+            simplifier.add(fix.latitude, fix.longitude, fix.accuracy, fix.time, vertices);
+        }
+        simplifier.drain(vertices);
+
+        double maxDeviation = 0;
+        int segment = 0;
+        for (LocationOutbox.Fix fix : trace) {
+            while (vertices.get(segment + 1).time < fix.time) {
+                segment++;
+            }
+            maxDeviation = Math.max(maxDeviation, deviation(fix, vertices.get(segment), vertices.get(segment + 1)));
+        }
+        double compression = (double) trace.size() / vertices.size();
+        System.out.println("Trajectory trace: fixes=" + trace.size() + " vertices=" + vertices.size()
+                + " compression=" + String.format("%.1f", compression)
+                + " maxDeviationMeters=" + String.format("%.1f", maxDeviation));
+
+        assertEquals(trace.get(0).time, vertices.get(0).time);
+        assertEquals(trace.get(trace.size() - 1).time, vertices.get(vertices.size() - 1).time);
+        assertEquals(trace.size(), simplifier.getFixesIn());
+        assertEquals(vertices.size(), simplifier.getVerticesOut());
+        assertTrue("Max deviation " + maxDeviation,
+                maxDeviation <= ERROR_BOUND_METERS + PROJECTION_SLACK_METERS);
+        assertTrue(simplifier.getMaxErrorMeters() <= ERROR_BOUND_METERS);
+        assertTrue("Compression " + compression, compression >= 5);
+    }
+
+    @Test
+    public void maxVertexIntervalForcesVertexWhileStationary() {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(ERROR_BOUND_METERS, 60 * 1000);
+        List<LocationOutbox.Fix> vertices = new ArrayList<>();
+        for (int i = 0; i <= 30; i++) {
+            simplifier.add(37.7749, -122.4194, 10, i * 10 * 1000L, vertices);
+        }
+        simplifier.drain(vertices);
+
+        for (int i = 1; i < vertices.size(); i++) {
+            assertTrue(vertices.get(i).time - vertices.get(i - 1).time <= 60 * 1000);
+        }
+        assertEquals(0, simplifier.getMaxErrorMeters(), 0);
+    }
+
+    // Distance of a fix from where constant velocity travel along the segment
+    // start -> end puts it at the fix's time
+    private static double deviation(LocationOutbox.Fix fix, LocationOutbox.Fix start, LocationOutbox.Fix end) {
+        double fraction = end.time == start.time ? 0 : (double) (fix.time - start.time) / (end.time - start.time);
+        double latitude = start.latitude + (end.latitude - start.latitude) * fraction;
+        double longitude = start.longitude + (end.longitude - start.longitude) * fraction;
+        return GeoMath.distanceMeters(fix.latitude, fix.longitude, latitude, longitude);
+    }
+
+    private List<LocationOutbox.Fix> loadTrace() throws Exception {
+        InputStream in = getClass().getResourceAsStream("trajectory-trace.csv");
+        assertNotNull("Missing trajectory-trace.csv", in);
+        List<LocationOutbox.Fix> trace = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                trace.add(new LocationOutbox.Fix(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                        Float.parseFloat(fields[3]), Long.parseLong(fields[0])));
+            }
+        }
+        return trace;
+    }
+}
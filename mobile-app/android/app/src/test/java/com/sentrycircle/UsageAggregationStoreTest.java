@@ -0,0 +1,91 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link UsageAggregationStore} keeps usage in the bucket it
+ * happened in, and refuses times outside its window.
+ */
+public class UsageAggregationStoreTest {
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long START = 1700000000000L / UsageAggregationStore.BUCKET_MILLIS
+            * UsageAggregationStore.BUCKET_MILLIS;
+
+    @Test
+    public void spanLongerThanADayCarriesIntoTheNextWindow() {
+        UsageAggregationStore store = new UsageAggregationStore(4);
+        int app = store.intern("com.example.video");
+        long end = START + 30 * HOUR;
+
+        store.open(START);
+        long windowEnd = store.windowEnd();
+        assertEquals(START + 24 * HOUR, windowEnd);
+        try {
+            store.addForeground(app, START, end);
+            fail("Span past the window was accepted");
+        } catch (IllegalArgumentException expected) {
+            // Nothing of the refused span is kept
+            assertTrue(store.snapshot().isEmpty());
+        }
+
+        // Up to the window end, as the ingester does, then the rest after a reset
+        store.addForeground(app, START, windowEnd);
+        assertEquals(24 * HOUR, total(store.snapshot(), app));
+        assertEveryBucketHolds(store.snapshot(), app, UsageAggregationStore.BUCKET_MILLIS);
+
+        store.reset();
+        store.open(windowEnd);
+        store.addForeground(app, windowEnd, end);
+        UsageAggregationStore.Snapshot snapshot = store.snapshot();
+        assertEquals(windowEnd, snapshot.firstBucketStart());
+        assertEquals(24, snapshot.bucketCount());
+        assertEquals(6 * HOUR, total(snapshot, app));
+        assertEveryBucketHolds(snapshot, app, UsageAggregationStore.BUCKET_MILLIS);
+    }
+
+    @Test
+    public void timesOutsideTheWindowAreRefused() {
+        UsageAggregationStore store = new UsageAggregationStore(4);
+        int app = store.intern("com.example.chat");
+        store.open(START + HOUR);
+
+        store.addLaunch(app, START + HOUR);
+        store.addLaunch(app, START + 25 * HOUR - 1);
+        assertEquals(1, store.snapshot().launchCount(0, app));
+        assertEquals(1, store.snapshot().launchCount(UsageAggregationStore.BUCKET_COUNT - 1, app));
+
+        try {
+            store.addLaunch(app, START);
+            fail("Launch before the window was accepted");
+        } catch (IllegalArgumentException expected) {
+            // Refused
+        }
+        try {
+            store.addLaunch(app, START + 25 * HOUR);
+            fail("Launch after the window was accepted");
+        } catch (IllegalArgumentException expected) {
+            // Refused
+        }
+        assertEquals(1, store.snapshot().launchCount(0, app));
+        assertEquals(1, store.snapshot().launchCount(UsageAggregationStore.BUCKET_COUNT - 1, app));
+    }
+
+    private static long total(UsageAggregationStore.Snapshot snapshot, int packageId) {
+        long total = 0;
+        for (int bucket = 0; bucket < snapshot.bucketCount(); bucket++) {
+            total += snapshot.foregroundMillis(bucket, packageId);
+        }
+        return total;
+    }
+
+    private static void assertEveryBucketHolds(UsageAggregationStore.Snapshot snapshot, int packageId,
+                                               long millis) {
+        for (int bucket = 0; bucket < snapshot.bucketCount(); bucket++) {
+            assertEquals("Bucket " + bucket, millis, snapshot.foregroundMillis(bucket, packageId));
+        }
+    }
+}
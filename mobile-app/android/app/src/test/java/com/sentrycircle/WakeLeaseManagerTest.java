@@ -0,0 +1,73 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link WakeLeaseManager} holds its lock only while a lease is live.
+ */
+public class WakeLeaseManagerTest {
+    // Stands in for the platform wake lock
+    private static final class FakeLock implements WakeLeaseManager.Lock {
+        boolean held;
+
+        @Override
+        public void acquire(long timeoutMs) {
+            held = true;
+        }
+
+        @Override
+        public void release() {
+            held = false;
+        }
+
+        @Override
+        public boolean isHeld() {
+            return held;
+        }
+    }
+
+    private final FakeLock lock = new FakeLock();
+    private long now = 1000;
+    private final WakeLeaseManager leases = new WakeLeaseManager(lock) {
+        @Override
+        long now() {
+            return now;
+        }
+    };
+
+    @Test
+    public void closingTheLiveLeaseReleasesPastAnExpiredOne() {
+        leases.acquire("leaked", 1000);
+        WakeLeaseManager.Lease live = leases.acquire("live", 60 * 1000);
+        assertTrue(lock.held);
+
+        // The leaked lease passes its deadline without being closed
+        now += 5000;
+        live.close();
+
+        assertFalse(lock.held);
+        assertEquals(0, leases.activeCount());
+        assertTrue(leases.getStats().contains("leaked[leases=1 heldMs=1000 maxMs=1000 timeouts=1]"));
+    }
+
+    @Test
+    public void lockStaysHeldWhileAnotherLeaseIsLive() {
+        WakeLeaseManager.Lease first = leases.acquire("first", 60 * 1000);
+        WakeLeaseManager.Lease second = leases.acquire("second", 60 * 1000);
+
+        now += 1000;
+        first.close();
+        assertTrue(lock.held);
+        assertEquals(1, leases.activeCount());
+
+        now += 1000;
+        second.close();
+        second.close();
+        assertFalse(lock.held);
+        assertEquals(2000, leases.getTotalHeldMs());
+    }
+}
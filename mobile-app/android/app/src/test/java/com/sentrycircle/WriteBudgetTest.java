@@ -0,0 +1,81 @@
+package com.sentrycircle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link WriteBudget} levels survive a restart.
+ */
+public class WriteBudgetTest {
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long WALL_TIME = 1700000000000L;
+
+    @Test
+    public void restartDoesNotRefillTheBurst() {
+        WriteBudget budget = new WriteBudget(0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(budget.tryAcquire(WriteBudget.RecordClass.STATUS, 0));
+        }
+        assertFalse(budget.tryAcquire(WriteBudget.RecordClass.STATUS, 0));
+        String state = budget.save(0, WALL_TIME);
+
+        // A new process starts with elapsed realtime unrelated to the old one
+        WriteBudget restored = new WriteBudget(5000);
+        restored.restore(state, 5000, WALL_TIME);
+        assertEquals(0, restored.tokens(WriteBudget.RecordClass.STATUS, 5000));
+        assertEquals(4, restored.tokens(WriteBudget.RecordClass.LOCATION, 5000));
+    }
+
+    @Test
+    public void restoredLevelsRefillForWallClockTime() {
+        WriteBudget budget = new WriteBudget(0);
+        budget.configure("status=24/3", 0);
+        for (int i = 0; i < 3; i++) {
+            budget.tryAcquire(WriteBudget.RecordClass.STATUS, 0);
+        }
+        String state = budget.save(0, WALL_TIME);
+
+        // 24 a day is one an hour
+        WriteBudget restored = new WriteBudget(0);
+        restored.restore(state, 0, WALL_TIME + 2 * HOUR);
+        assertEquals(2, restored.tokens(WriteBudget.RecordClass.STATUS, 0));
+
+        // A clock set back refills nothing
+        WriteBudget setBack = new WriteBudget(0);
+        setBack.restore(state, 0, WALL_TIME - HOUR);
+        assertEquals(0, setBack.tokens(WriteBudget.RecordClass.STATUS, 0));
+    }
+
+    @Test
+    public void restoreKeepsAnnouncedRates() {
+        WriteBudget budget = new WriteBudget(0);
+        budget.configure("geofence=48/2", 0);
+        String state = budget.save(0, WALL_TIME);
+
+        WriteBudget restored = new WriteBudget(0);
+        restored.restore(state, 0, WALL_TIME);
+        assertEquals(2, restored.tokens(WriteBudget.RecordClass.GEOFENCE, 0));
+        assertTrue(restored.getStats().contains("geofence: 48/2"));
+    }
+
+    @Test
+    public void refundGivesTheTokenBack() {
+        WriteBudget budget = new WriteBudget(0);
+        for (int i = 0; i < 6; i++) {
+            budget.tryAcquire(WriteBudget.RecordClass.GEOFENCE, 0);
+        }
+        assertFalse(budget.tryAcquire(WriteBudget.RecordClass.GEOFENCE, 0));
+        budget.refund(WriteBudget.RecordClass.GEOFENCE);
+        assertTrue(budget.tryAcquire(WriteBudget.RecordClass.GEOFENCE, 0));
+    }
+
+    @Test
+    public void malformedStateIsIgnored() {
+        WriteBudget budget = new WriteBudget(0);
+        budget.restore("not a budget", 0, WALL_TIME);
+        assertEquals(3, budget.tokens(WriteBudget.RecordClass.STATUS, 0));
+    }
+}